@@ -0,0 +1,164 @@
+/**
+ *  BlockMaxIndex keeps block-max summaries of term postings for
+ *  Block-Max WAND.  A term's postings are split into blocks of
+ *  BLOCK_SIZE postings; the summary of a block is its last docid and
+ *  the largest score that any of its postings gets.  A document inside
+ *  a block's docid range can then be bounded by the block's maximum
+ *  instead of the term's global bound, and blocks whose bounds cannot
+ *  reach the top k are skipped without reading their postings.
+ *
+ *  Scores depend on the retrieval model and its parameters, so the
+ *  caller names each summary with a key that includes them (e.g. the
+ *  BM25 k_1 and b).  Summaries are built from the whole index the first
+ *  time a term is seen and kept in a bounded LRU cache.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BlockMaxIndex {
+
+    public static final int BLOCK_SIZE = 64;
+
+    /**
+     * Scores one posting of a term.
+     */
+    public interface PostingScorer {
+        public double score(int docid, int tf);
+    }
+
+    /**
+     * The block summaries of one term.
+     */
+    public static class Blocks {
+        private int numBlocks;
+        private int[] lastDocids;
+        private double[] maxScores;
+
+        Blocks(int numBlocks, int[] lastDocids, double[] maxScores) {
+            this.numBlocks = numBlocks;
+            this.lastDocids = lastDocids;
+            this.maxScores = maxScores;
+        }
+
+        /**
+         * @return The number of blocks.
+         */
+        public int size() {
+            return this.numBlocks;
+        }
+
+        /**
+         * Find the block whose docid range contains a document.
+         *
+         * @param from
+         *            A block at or before the one to find; blocks are
+         *            searched forward from it.
+         * @param docid
+         *            The internal document id.
+         * @return The first block at or after from whose last docid is >=
+         *         docid, or size() if the document is after every block.
+         */
+        public int findBlock(int from, int docid) {
+            while (from < this.numBlocks && this.lastDocids[from] < docid)
+                from++;
+            return from;
+        }
+
+        /**
+         * @return The last docid of a block.
+         */
+        public int getLastDocid(int block) {
+            return this.lastDocids[block];
+        }
+
+        /**
+         * @return The largest score of a posting in a block.
+         */
+        public double getMaxScore(int block) {
+            return this.maxScores[block];
+        }
+    }
+
+    private int maxEntries;
+    private LinkedHashMap<String, Blocks> cache;
+
+    /**
+     * @param maxEntries
+     *            The number of terms whose summaries are kept.
+     */
+    public BlockMaxIndex(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<String, Blocks>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Blocks> e) {
+                return size() > BlockMaxIndex.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The cached summaries with the given key, or null.
+     */
+    public synchronized Blocks get(String key) {
+        return this.cache.get(key);
+    }
+
+    /**
+     * Cache the summaries of a term.
+     */
+    public synchronized void put(String key, Blocks blocks) {
+        this.cache.put(key, blocks);
+    }
+
+    /**
+     * Build the block summaries of a posting list.
+     *
+     * @param postings
+     *            An unpositioned cursor on the whole list.
+     * @param scorer
+     *            Scores each posting.
+     * @return The summaries.
+     * @throws IOException
+     */
+    public static Blocks build(PostingCursor postings, PostingScorer scorer)
+            throws IOException {
+        int numBlocks = (postings.df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] lastDocids = new int[Math.max(numBlocks, 1)];
+        double[] maxScores = new double[lastDocids.length];
+
+        int block = 0, n = 0, docid = -1;
+        double max = Double.NEGATIVE_INFINITY;
+
+        while (true) {
+            boolean more = postings.nextDoc() != PostingCursor.NO_MORE_DOCS;
+            if (more) {
+                docid = postings.docID();
+                max = Math.max(max, scorer.score(docid, postings.freq()));
+                n++;
+            }
+
+            // close a full block, or the last, partial one
+            if (n == BLOCK_SIZE || (!more && n > 0)) {
+                if (block == lastDocids.length) {
+                    lastDocids = Arrays.copyOf(lastDocids, block << 1);
+                    maxScores = Arrays.copyOf(maxScores, block << 1);
+                }
+                lastDocids[block] = docid;
+                maxScores[block++] = max;
+                n = 0;
+                max = Double.NEGATIVE_INFINITY;
+            }
+
+            if (!more)
+                break;
+        }
+
+        return new Blocks(block, lastDocids, maxScores);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ *  BooleanBitsets evaluates unranked Boolean queries with bitsets.
+ *  Every match of an unranked Boolean query scores 1.0, so a query
+ *  operator's result is just a set of documents: each #AND and #OR
+ *  becomes a FixedBitSet over all docids, combined with word-parallel
+ *  AND and OR, and docids are only enumerated for the final result.
+ *
+ *  Inverted list arguments (terms, #SYN, #NEAR, #WINDOW) are not
+ *  materialized: their postings are set directly into the #OR bitset,
+ *  and an #AND whose bitset has fewer documents than an argument's
+ *  list probes the list with advance instead of reading it all.  Only
+ *  a few bitsets are alive at a time, one per level of the tree.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.util.FixedBitSet;
+
+public class BooleanBitsets {
+
+    /**
+     * @return true if the query tree only has #AND, #OR and inverted list
+     *         operators, so it can be evaluated with bitsets.
+     */
+    public static boolean supports(Qryop op) {
+        if (op instanceof QryopSlScore)
+            op = op.args.get(0);
+
+        if (op instanceof QryopIl)
+            return true;
+
+        if (op instanceof QryopSlAnd || op instanceof QryopSlOr) {
+            for (Qryop arg : op.args)
+                if (!supports(arg))
+                    return false;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Evaluate an unranked Boolean query tree.
+     *
+     * @param qTree
+     *            A query tree.
+     * @param r
+     *            An unranked Boolean retrieval model.
+     * @return The result, in docid order with scores of 1.0, or null if the
+     *         tree has an operator that is not supported.
+     * @throws IOException
+     */
+    public static QryResult evaluate(Qryop qTree, RetrievalModel r)
+            throws IOException {
+        if (!supports(qTree))
+            return null;
+
+        FixedBitSet bits = bits(qTree, r);
+        QryResult result = new QryResult();
+
+        int numBits = bits.length();
+        for (int docid = (numBits > 0) ? bits.nextSetBit(0) : -1; docid >= 0;
+                docid = (docid + 1 < numBits) ? bits.nextSetBit(docid + 1) : -1)
+            result.docScores.add(docid, 1.0);
+
+        return result;
+    }
+
+    /**
+     * @return The documents that an operator matches.
+     */
+    private static FixedBitSet bits(Qryop op, RetrievalModel r)
+            throws IOException {
+        if (op instanceof QryopSlScore)
+            op = op.args.get(0);
+
+        if (op instanceof QryopSlAnd && op.args.size() > 0) {
+            FixedBitSet bits = bits(op.args.get(0), r);
+            for (int i = 1; i < op.args.size(); i++)
+                andInto(bits, op.args.get(i), r);
+            return bits;
+        }
+
+        FixedBitSet bits = new FixedBitSet(QryEval.READER.maxDoc());
+        if (op instanceof QryopIl)
+            orInto(bits, op, r);
+        else if (op instanceof QryopSlOr)
+            for (Qryop arg : op.args)
+                orInto(bits, arg, r);
+        return bits;
+    }
+
+    /**
+     * Add the documents that an operator matches to a bitset.
+     */
+    private static void orInto(FixedBitSet bits, Qryop op, RetrievalModel r)
+            throws IOException {
+        if (op instanceof QryopSlScore)
+            op = op.args.get(0);
+
+        if (op instanceof QryopIl) {
+            PostingCursor cursor = ((QryopIl) op).cursor(r, false);
+            for (int docid = cursor.nextDoc(); docid != PostingCursor.NO_MORE_DOCS;
+                    docid = cursor.nextDoc())
+                bits.set(docid);
+        } else
+            bits.or(bits(op, r));
+    }
+
+    /**
+     * Remove the documents that an operator does not match from a bitset.
+     */
+    private static void andInto(FixedBitSet bits, Qryop op, RetrievalModel r)
+            throws IOException {
+        if (op instanceof QryopSlScore)
+            op = op.args.get(0);
+
+        if (!(op instanceof QryopIl)) {
+            bits.and(bits(op, r));
+            return;
+        }
+
+        PostingCursor cursor = ((QryopIl) op).cursor(r, false);
+
+        // A long list is cheaper to probe at the documents that are left
+        // than to read into a bitset of its own.
+        int numBits = bits.length();
+        if (bits.cardinality() < cursor.df) {
+            for (int docid = (numBits > 0) ? bits.nextSetBit(0) : -1; docid >= 0;
+                    docid = (docid + 1 < numBits) ? bits.nextSetBit(docid + 1) : -1) {
+                int doc = cursor.docID();
+                if (doc < docid)
+                    doc = cursor.advance(docid);
+                if (doc != docid)
+                    bits.clear(docid);
+            }
+            return;
+        }
+
+        FixedBitSet other = new FixedBitSet(numBits);
+        for (int docid = cursor.nextDoc(); docid != PostingCursor.NO_MORE_DOCS;
+                docid = cursor.nextDoc())
+            other.set(docid);
+        bits.and(other);
+    }
+}
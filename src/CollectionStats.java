@@ -0,0 +1,255 @@
+/**
+ *  CollectionStats gives query operators, feedback and learning to
+ *  rank one place to read collection statistics.  Per-field totals
+ *  (sumTotalTermFreq, docCount) and numDocs are loaded eagerly when
+ *  the index is opened.  Term statistics (df, ctf) are loaded on first
+ *  use and kept in a bounded, thread-safe LRU cache, so that terms
+ *  that repeat across queries and documents are looked up only once.
+ *
+ *  Two kinds of term statistics are kept.  docFreq and totalTermFreq
+ *  are Lucene's index statistics, which still count deleted
+ *  documents.  liveTermStats only counts live documents; this is what
+ *  the posting cursors report as df and ctf.  The two are the same
+ *  when the index has no deletions.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+
+public class CollectionStats {
+
+    /**
+     * df and ctf of a term or of a derived inverted list.
+     */
+    public static class TermStats {
+        public final int df;
+        public final long ctf;
+
+        public TermStats(int df, long ctf) {
+            this.df = df;
+            this.ctf = ctf;
+        }
+    }
+
+    // One cache entry. The live statistics are only counted when someone
+    // asks for them.
+    private static class CacheEntry {
+        TermStats index;
+        TermStats live;
+    }
+
+    private IndexReader reader;
+    private boolean hasDeletions;
+
+    // collection and per-field totals
+    private int numDocs;
+    private Map<String, Long> sumTotalTermFreq = new HashMap<String, Long>();
+    private Map<String, Integer> docCount = new HashMap<String, Integer>();
+
+    // term statistics in access order, so the eldest entry is the least
+    // recently used one
+    private final int maxEntries;
+    private LinkedHashMap<String, CacheEntry> terms;
+
+    /**
+     * @param reader
+     *            IndexReader object created in {@link QryEval}.
+     * @param maxEntries
+     *            The maximum number of terms whose statistics are cached.
+     * @throws IOException
+     */
+    public CollectionStats(IndexReader reader, int maxEntries)
+            throws IOException {
+        this(reader, null, maxEntries);
+    }
+
+    /**
+     * @param reader
+     *            IndexReader object created in {@link QryEval}.
+     * @param snapshot
+     *            A snapshot of the index to read the field totals from, or
+     *            null to read them from the index.
+     * @param maxEntries
+     *            The maximum number of terms whose statistics are cached.
+     * @throws IOException
+     */
+    public CollectionStats(IndexReader reader, IndexSnapshot snapshot,
+            int maxEntries) throws IOException {
+        this.reader = reader;
+        this.hasDeletions = reader.hasDeletions();
+        this.numDocs = reader.numDocs();
+        this.maxEntries = maxEntries;
+        this.terms = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> e) {
+                return size() > CollectionStats.this.maxEntries;
+            }
+        };
+
+        if (snapshot != null) {
+            this.sumTotalTermFreq.putAll(snapshot.sumTotalTermFreq);
+            this.docCount.putAll(snapshot.docCount);
+            return;
+        }
+
+        for (String field : MultiFields.getIndexedFields(reader)) {
+            this.sumTotalTermFreq.put(field, reader.getSumTotalTermFreq(field));
+            this.docCount.put(field, reader.getDocCount(field));
+        }
+    }
+
+    /**
+     * @return The number of live documents in the index.
+     */
+    public int numDocs() {
+        return this.numDocs;
+    }
+
+    /**
+     * @return The total number of term occurrences in a field, or 0 if the
+     *         field is not indexed.
+     */
+    public long sumTotalTermFreq(String field) {
+        Long sum = this.sumTotalTermFreq.get(field);
+        return (sum == null) ? 0 : sum;
+    }
+
+    /**
+     * @return The number of documents that have a field, or 0 if the field
+     *         is not indexed.
+     */
+    public int docCount(String field) {
+        Integer count = this.docCount.get(field);
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * @return The index df of a term, counting deleted documents.
+     */
+    public int docFreq(Term term) throws IOException {
+        return getEntry(term).index.df;
+    }
+
+    /**
+     * @return The index ctf of a term, counting deleted documents.
+     */
+    public long totalTermFreq(Term term) throws IOException {
+        return getEntry(term).index.ctf;
+    }
+
+    /**
+     * Get the df and ctf of a term over the live documents only.
+     *
+     * @param term
+     *            The term.
+     * @return The live statistics.
+     * @throws IOException
+     */
+    public TermStats liveTermStats(Term term) throws IOException {
+        CacheEntry entry = getEntry(term);
+
+        synchronized (this) {
+            if (entry.live != null)
+                return entry.live;
+        }
+
+        TermStats live = entry.index;
+        if (this.hasDeletions && live.df > 0)
+            live = countLiveStats(term);
+
+        synchronized (this) {
+            entry.live = live;
+        }
+        return live;
+    }
+
+    /**
+     * Get the cached statistics of a derived inverted list, e.g. the result
+     * of a #NEAR operator.
+     *
+     * @param key
+     *            The string version of the query operator.
+     * @return The statistics, or null if they are not cached.
+     */
+    public synchronized TermStats getListStats(String key) {
+        CacheEntry entry = this.terms.get(key);
+        return (entry == null) ? null : entry.live;
+    }
+
+    /**
+     * Cache the statistics of a derived inverted list.
+     *
+     * @param key
+     *            The string version of the query operator.
+     * @param stats
+     *            The statistics over the live documents.
+     */
+    public synchronized void putListStats(String key, TermStats stats) {
+        CacheEntry entry = new CacheEntry();
+        entry.index = stats;
+        entry.live = stats;
+        this.terms.put(key, entry);
+    }
+
+    /**
+     * Find the cache entry of a term, loading its index statistics if it is
+     * not cached.
+     */
+    private CacheEntry getEntry(Term term) throws IOException {
+        String key = term.text() + "." + term.field();
+
+        synchronized (this) {
+            CacheEntry entry = this.terms.get(key);
+            if (entry != null)
+                return entry;
+        }
+
+        // Read the statistics without holding the lock, so that other
+        // threads can use the cache meanwhile.
+
+        CacheEntry entry = new CacheEntry();
+        entry.index = new TermStats(this.reader.docFreq(term),
+                this.reader.totalTermFreq(term));
+
+        synchronized (this) {
+            CacheEntry cached = this.terms.get(key);
+            if (cached != null)
+                return cached;
+            this.terms.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Count the df and ctf of a term over the live documents, with a pass
+     * over its postings that skips positions.
+     */
+    private TermStats countLiveStats(Term term) throws IOException {
+        int df = 0;
+        long ctf = 0;
+
+        for (AtomicReaderContext context : this.reader.leaves()) {
+            DocsEnum docs = context.reader().termDocsEnum(term);
+            if (docs == null)
+                continue;
+
+            while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                df++;
+                ctf += docs.freq();
+            }
+        }
+        return new TermStats(df, ctf);
+    }
+}
@@ -3,6 +3,7 @@
  */
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.lucene.index.IndexReader;
@@ -12,20 +13,76 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * The lengths of each field are kept in a dense int buffer indexed by
+ * docid.  If an up-to-date {@link IndexSnapshot} exists, the buffers are
+ * its memory-mapped lengths; otherwise the lengths are copied from the
+ * norms when the store is created.  Hot loops should resolve the field
+ * name to a field id once with {@link #getFieldId(String)} and then call
+ * {@link #getDocLength(int, int)}.
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+
+  // field name -> field id; lengths[id].get(docid) is the length of the field
+  private Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+  private IntBuffer[] lengths;
 
   /**
    * @param reader IndexReader object created in {@link QryEval}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, null);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link QryEval}.
+   * @param snapshot A snapshot of the index, or null to read the norms.
+   */
+  public DocLengthStore(IndexReader reader, IndexSnapshot snapshot) throws IOException {
     this.reader = reader;
+
+    if (snapshot != null) {
+      this.lengths = new IntBuffer[snapshot.fields.size()];
+      for (int id = 0; id < this.lengths.length; id++) {
+        this.fieldIds.put(snapshot.fields.get(id), id);
+        this.lengths[id] = snapshot.lengths.get(id);
+      }
+      return;
+    }
+
+    Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      NumericDocValues norms = MultiDocValues.getNormValues(reader, field);
+      if (norms != null)
+        values.put(field, norms);
     }
+
+    int maxDoc = reader.maxDoc();
+    this.lengths = new IntBuffer[values.size()];
+
+    for (Map.Entry<String, NumericDocValues> e : values.entrySet()) {
+      int id = this.fieldIds.size();
+      int[] fieldLengths = new int[maxDoc];
+      NumericDocValues norms = e.getValue();
+
+      for (int docid = 0; docid < maxDoc; docid++)
+        fieldLengths[docid] = (int) norms.get(docid);
+
+      this.fieldIds.put(e.getKey(), id);
+      this.lengths[id] = IntBuffer.wrap(fieldLengths);
+    }
+  }
+
+  /**
+   * Returns the id of a field, for use with {@link #getDocLength(int, int)}.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return The field id, or -1 if the field has no lengths.
+   */
+  public int getFieldId(String fieldname) {
+    Integer id = this.fieldIds.get(fieldname);
+    return (id == null) ? -1 : id;
   }
 
   /**
@@ -36,6 +93,26 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLength(getFieldId(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of a field in a document.
+   *
+   * @param fieldId A field id from {@link #getFieldId(String)}.
+   * @param docid The internal docid in the lucene index.
+   */
+  public int getDocLength(int fieldId, int docid) {
+    return (fieldId < 0) ? 0 : this.lengths[fieldId].get(docid);
+  }
+
+  /**
+   * Returns the lengths of a field in all documents, indexed by docid.
+   * The buffer is shared; use absolute get(docid) only.
+   *
+   * @param fieldId A field id from {@link #getFieldId(String)}.
+   */
+  public IntBuffer getDocLengths(int fieldId) {
+    return (fieldId < 0) ? IntBuffer.allocate(this.reader.maxDoc()) : this.lengths[fieldId];
   }
 }
@@ -0,0 +1,128 @@
+/**
+ *  DocidHeap merges the docids of a query operator's arguments.  It is
+ *  a binary min-heap of argument indexes, ordered by each argument's
+ *  current docid and then by argument index, so the smallest docid is
+ *  found in O(1) and an argument is moved to its next docid in
+ *  O(log n), instead of scanning every argument.  Arguments that share
+ *  the smallest docid come off the top in argument order.
+ *
+ *  An argument whose list is exhausted (docid NO_MORE_DOCS) leaves the
+ *  heap.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+public class DocidHeap {
+
+    private int[] heap; // argument indexes
+    private int[] docids; // argument index -> its current docid
+    private int size = 0;
+
+    /**
+     * @param numArgs
+     *            The number of arguments; they are indexed 0 .. numArgs-1.
+     */
+    public DocidHeap(int numArgs) {
+        this.heap = new int[numArgs];
+        this.docids = new int[numArgs];
+    }
+
+    /**
+     * Add an argument, positioned on a docid. An exhausted argument is not
+     * added.
+     */
+    public void add(int arg, int docid) {
+        if (docid == PostingCursor.NO_MORE_DOCS)
+            return;
+
+        this.docids[arg] = docid;
+        this.heap[this.size] = arg;
+        siftUp(this.size++);
+    }
+
+    /**
+     * @return true if every argument is exhausted.
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return The smallest current docid, or NO_MORE_DOCS if the heap is
+     *         empty.
+     */
+    public int topDocid() {
+        return (this.size > 0) ? this.docids[this.heap[0]]
+                : PostingCursor.NO_MORE_DOCS;
+    }
+
+    /**
+     * @return The argument with the smallest current docid; among arguments
+     *         with the same docid, the first one.
+     */
+    public int topArg() {
+        return this.heap[0];
+    }
+
+    /**
+     * The top argument moved to a new docid. If it is NO_MORE_DOCS, the
+     * argument leaves the heap.
+     */
+    public void updateTop(int docid) {
+        if (docid == PostingCursor.NO_MORE_DOCS) {
+            this.heap[0] = this.heap[--this.size];
+            if (this.size == 0)
+                return;
+        } else
+            this.docids[this.heap[0]] = docid;
+        siftDown(0);
+    }
+
+    /**
+     * Remove the top argument, e.g. to advance it and add it back later.
+     */
+    public void pop() {
+        updateTop(PostingCursor.NO_MORE_DOCS);
+    }
+
+    /**
+     * Remove every argument, so the heap can be filled again.
+     */
+    public void clear() {
+        this.size = 0;
+    }
+
+    private boolean less(int a, int b) {
+        return this.docids[a] < this.docids[b]
+                || (this.docids[a] == this.docids[b] && a < b);
+    }
+
+    private void siftUp(int i) {
+        int arg = this.heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(arg, this.heap[parent]))
+                break;
+            this.heap[i] = this.heap[parent];
+            i = parent;
+        }
+        this.heap[i] = arg;
+    }
+
+    private void siftDown(int i) {
+        int arg = this.heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= this.size)
+                break;
+            if (child + 1 < this.size
+                    && less(this.heap[child + 1], this.heap[child]))
+                child++;
+            if (!less(this.heap[child], arg))
+                break;
+            this.heap[i] = this.heap[child];
+            i = child;
+        }
+        this.heap[i] = arg;
+    }
+}
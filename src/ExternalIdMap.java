@@ -0,0 +1,127 @@
+/**
+ *  ExternalIdMap finds the internal docid of an external document id
+ *  (e.g., clueweb09-enwp00-88-09710).  It is an open-addressing hash
+ *  table with linear probing over the ordinals of an
+ *  {@link ExternalIdTable}; each slot also keeps the hash of its id,
+ *  so an id is only decoded from the table to confirm a likely match.
+ *  The table is built once, from the ids that are already in memory,
+ *  and holds three int arrays.
+ *
+ *  Like a TermQuery search, it only returns live documents.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+public class ExternalIdMap {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ExternalIdTable ids;
+
+    // slots[i] is an ordinal, or -1 for an empty slot; hashes[i] is the
+    // hash of the id in slot i
+    private int[] slots;
+    private int[] hashes;
+    private int mask;
+
+    // ordinal -> live docid, or -1 if every document with the id is
+    // deleted
+    private int[] ordToDoc;
+
+    /**
+     * Build the map.
+     *
+     * @param reader
+     *            IndexReader object created in {@link QryEval}.
+     * @param ids
+     *            The external ids of the documents.
+     */
+    public ExternalIdMap(IndexReader reader, ExternalIdTable ids) {
+        this.ids = ids;
+
+        this.ordToDoc = new int[ids.size()];
+        Arrays.fill(this.ordToDoc, -1);
+
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int docid = 0; docid < reader.maxDoc(); docid++) {
+            int ord = ids.getOrdinal(docid);
+            if (ord >= 0 && (liveDocs == null || liveDocs.get(docid)))
+                this.ordToDoc[ord] = docid;
+        }
+
+        // at most half full
+        int capacity = Integer.highestOneBit(Math.max(2, ids.size()) * 2 - 1) << 1;
+        this.slots = new int[capacity];
+        this.hashes = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(this.slots, -1);
+
+        for (int ord = 0; ord < ids.size(); ord++) {
+            int hash = hash(ids.getByOrdinal(ord));
+            int i = hash & this.mask;
+            while (this.slots[i] >= 0)
+                i = (i + 1) & this.mask;
+            this.slots[i] = ord;
+            this.hashes[i] = hash;
+        }
+    }
+
+    /**
+     * Find the internal docid of a document.
+     *
+     * @param externalId
+     *            The external id of the document.
+     * @return The internal docid, or -1 if there is no such live document.
+     */
+    public int get(String externalId) {
+        int hash = hash(externalId);
+
+        for (int i = hash & this.mask; this.slots[i] >= 0; i = (i + 1)
+                & this.mask) {
+            if (this.hashes[i] == hash
+                    && this.ids.getByOrdinal(this.slots[i]).equals(externalId))
+                return this.ordToDoc[this.slots[i]];
+        }
+        return -1;
+    }
+
+    /**
+     * Find the internal docids of many documents.
+     *
+     * @param externalIds
+     *            The external ids of the documents.
+     * @return The internal docids, in the same order; -1 for an id that
+     *         has no live document.
+     */
+    public int[] get(List<String> externalIds) {
+        int[] docids = new int[externalIds.size()];
+        for (int i = 0; i < docids.length; i++)
+            docids[i] = get(externalIds.get(i));
+        return docids;
+    }
+
+    /**
+     * Hash the UTF-8 bytes of an id (FNV-1a, then mixed so that the low
+     * bits used for the slot depend on every byte).
+     */
+    private static int hash(String id) {
+        byte[] bytes = id.getBytes(UTF8);
+        int h = 0x811c9dc5;
+        for (byte b : bytes) {
+            h ^= (b & 0xff);
+            h *= 0x01000193;
+        }
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+}
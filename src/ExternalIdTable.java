@@ -0,0 +1,247 @@
+/**
+ *  ExternalIdTable maps internal docids to external document ids
+ *  (e.g., clueweb09-enwp00-88-09710) without loading stored fields.
+ *  It is built once from the terms of the externalId field, or read
+ *  from the memory-mapped {@link IndexSnapshot}.
+ *
+ *  The ids are kept front-coded in term (lexicographic) order, in
+ *  blocks of BLOCK_SIZE ids: the first id of a block is stored whole
+ *  and each following id as the length of the prefix it shares with
+ *  the previous id plus the rest of its bytes.  docOrds maps a docid to
+ *  the ordinal of its id in that order, and blockOffsets maps a block
+ *  to its first byte, so a lookup decodes at most one block.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+public class ExternalIdTable {
+
+    public static final String FIELD = "externalId";
+
+    static final int BLOCK_SIZE = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // number of distinct external ids
+    private int numIds;
+
+    // docid -> ordinal of its external id, or -1 if it has none
+    private IntBuffer docOrds;
+
+    // block -> offset of its first byte in bytes
+    private IntBuffer blockOffsets;
+
+    // the front-coded ids
+    private ByteBuffer bytes;
+
+    /**
+     * Build the table from the terms of the externalId field. Deleted
+     * documents are included, so every docid in the index can be looked up.
+     *
+     * @param reader
+     *            IndexReader object created in {@link QryEval}.
+     * @throws IOException
+     */
+    public ExternalIdTable(IndexReader reader) throws IOException {
+        int[] ords = new int[reader.maxDoc()];
+        Arrays.fill(ords, -1);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int[] offsets = new int[16];
+        byte[] prev = new byte[0];
+        int ord = 0;
+
+        Terms terms = MultiFields.getTerms(reader, FIELD);
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docs = null;
+            BytesRef term;
+
+            while ((term = termsEnum.next()) != null) {
+                byte[] id = Arrays.copyOfRange(term.bytes, term.offset,
+                        term.offset + term.length);
+
+                // start a new block every BLOCK_SIZE ids
+
+                int prefix = 0;
+                if (ord % BLOCK_SIZE == 0) {
+                    int block = ord / BLOCK_SIZE;
+                    if (block == offsets.length)
+                        offsets = Arrays.copyOf(offsets, block << 1);
+                    offsets[block] = buf.size();
+                } else {
+                    int max = Math.min(prev.length, id.length);
+                    while (prefix < max && prev[prefix] == id[prefix])
+                        prefix++;
+                    writeVInt(buf, prefix);
+                }
+                writeVInt(buf, id.length - prefix);
+                buf.write(id, prefix, id.length - prefix);
+                prev = id;
+
+                docs = termsEnum.docs(null, docs, DocsEnum.FLAG_NONE);
+                int docid;
+                while ((docid = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+                    ords[docid] = ord;
+                ord++;
+            }
+        }
+
+        this.numIds = ord;
+        this.docOrds = IntBuffer.wrap(ords);
+        this.blockOffsets = IntBuffer.wrap(Arrays.copyOf(offsets,
+                (ord + BLOCK_SIZE - 1) / BLOCK_SIZE));
+        this.bytes = ByteBuffer.wrap(buf.toByteArray());
+    }
+
+    /**
+     * Create a table from buffers, e.g. the sections of a memory-mapped
+     * snapshot that were written by {@link #write(DataOutputStream)}.
+     */
+    ExternalIdTable(int numIds, IntBuffer docOrds, IntBuffer blockOffsets,
+            ByteBuffer bytes) {
+        this.numIds = numIds;
+        this.docOrds = docOrds;
+        this.blockOffsets = blockOffsets;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return The number of distinct external ids.
+     */
+    public int size() {
+        return this.numIds;
+    }
+
+    /**
+     * Get the ordinal of a document's external id, i.e., its rank among
+     * all external ids in lexicographic (UTF-8 byte) order.
+     *
+     * @param docid
+     *            The internal docid in the lucene index.
+     * @return The ordinal, or -1 if the document has no external id.
+     */
+    public int getOrdinal(int docid) {
+        return this.docOrds.get(docid);
+    }
+
+    /**
+     * Get the external id of a document.
+     *
+     * @param docid
+     *            The internal docid in the lucene index.
+     * @return The external id, or null if the document has none.
+     */
+    public String get(int docid) {
+        int ord = this.docOrds.get(docid);
+        return (ord < 0) ? null : getByOrdinal(ord);
+    }
+
+    /**
+     * Get the external id with the given ordinal.
+     *
+     * @param ord
+     *            An ordinal from {@link #getOrdinal(int)}.
+     * @return The external id.
+     */
+    public String getByOrdinal(int ord) {
+        byte[] id = new byte[32];
+        int length = 0;
+
+        // pos[0] is the read position in bytes
+        int[] pos = { this.blockOffsets.get(ord / BLOCK_SIZE) };
+
+        for (int i = 0; i <= ord % BLOCK_SIZE; i++) {
+            length = (i == 0) ? 0 : readVInt(pos);
+            int suffix = readVInt(pos);
+
+            if (id.length < length + suffix)
+                id = Arrays.copyOf(id, Math.max(length + suffix, id.length << 1));
+            for (int j = 0; j < suffix; j++)
+                id[length++] = this.bytes.get(pos[0]++);
+        }
+
+        return new String(id, 0, length, UTF8);
+    }
+
+    /**
+     * Write the table: numIds, the number of docids and docOrds, the
+     * number of blocks and blockOffsets, the number of bytes and the bytes.
+     *
+     * @param out
+     *            The output stream.
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.numIds);
+
+        out.writeInt(this.docOrds.limit());
+        for (int i = 0; i < this.docOrds.limit(); i++)
+            out.writeInt(this.docOrds.get(i));
+
+        out.writeInt(this.blockOffsets.limit());
+        for (int i = 0; i < this.blockOffsets.limit(); i++)
+            out.writeInt(this.blockOffsets.get(i));
+
+        byte[] data = new byte[this.bytes.limit()];
+        ((ByteBuffer) this.bytes.duplicate().clear()).get(data);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Read a table written by {@link #write(DataOutputStream)} from the
+     * current position of a snapshot file. Each array is memory-mapped
+     * separately, not copied. The file is positioned after the table.
+     *
+     * @param raf
+     *            The snapshot file.
+     * @return The table.
+     * @throws IOException
+     */
+    static ExternalIdTable read(RandomAccessFile raf) throws IOException {
+        int numIds = raf.readInt();
+        IntBuffer docOrds = IndexSnapshot.mapSection(raf, 4L * raf.readInt())
+                .asIntBuffer();
+        IntBuffer blockOffsets = IndexSnapshot.mapSection(raf,
+                4L * raf.readInt()).asIntBuffer();
+        ByteBuffer bytes = IndexSnapshot.mapSection(raf, raf.readInt());
+
+        return new ExternalIdTable(numIds, docOrds, blockOffsets, bytes);
+    }
+
+    private int readVInt(int[] pos) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = this.bytes.get(pos[0]++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    private static void writeVInt(ByteArrayOutputStream out, int i) {
+        while ((i & ~0x7f) != 0) {
+            out.write((i & 0x7f) | 0x80);
+            i >>>= 7;
+        }
+        out.write(i);
+    }
+}
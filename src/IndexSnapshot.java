@@ -0,0 +1,272 @@
+/**
+ *  IndexSnapshot writes and reads a binary snapshot of the document
+ *  lengths, field statistics and external ids of an index, so that a
+ *  new JVM does not have to rebuild them from the norms and terms
+ *  before the first query.
+ *  The snapshot is a file next to the index (indexPath + ".snapshot"
+ *  by default).  Each section is memory-mapped when it is opened, so the
+ *  document lengths are paged in by the operating system as they are
+ *  used.
+ *
+ *  The file is big-endian:
+ *    int    MAGIC
+ *    int    FORMAT_VERSION
+ *    long   index version (DirectoryReader.getVersion)
+ *    int    maxDoc
+ *    int    numDocs
+ *    int    number of fields
+ *    then for each field:
+ *      UTF    field name
+ *      long   sumTotalTermFreq
+ *      int    docCount
+ *    then for each field, in the same order:
+ *      int[maxDoc]  document lengths
+ *    then the external id table (see ExternalIdTable.write)
+ *
+ *  A snapshot is stale if its format version, index version, maxDoc
+ *  or numDocs differ from the open index; stale snapshots are ignored.
+ *
+ *  Usage:  java IndexSnapshot indexPath [snapshotPath]
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.store.FSDirectory;
+
+public class IndexSnapshot {
+
+    private static final int MAGIC = 0x534e4150; // "SNAP"
+    private static final int FORMAT_VERSION = 2;
+
+    // the fields, in file order, and their statistics
+    List<String> fields = new ArrayList<String>();
+    Map<String, Long> sumTotalTermFreq = new HashMap<String, Long>();
+    Map<String, Integer> docCount = new HashMap<String, Integer>();
+
+    // lengths.get(i) holds the document lengths of fields.get(i)
+    List<IntBuffer> lengths = new ArrayList<IntBuffer>();
+
+    // external ids of the documents
+    ExternalIdTable externalIds;
+
+    /**
+     * @param indexPath
+     *            The path of the index directory.
+     * @return The default path of the snapshot of an index.
+     */
+    public static String defaultPath(String indexPath) {
+        return new File(indexPath).getPath() + ".snapshot";
+    }
+
+    /**
+     * Memory-map a snapshot and check that it matches the open index. Each
+     * section is mapped separately, so the file may be larger than one
+     * mapping (2GB).
+     *
+     * @param reader
+     *            IndexReader object created in {@link QryEval}.
+     * @param path
+     *            The path of the snapshot file.
+     * @return The snapshot, or null if there is no snapshot, it is stale or
+     *         it cannot be mapped.
+     * @throws IOException
+     */
+    public static IndexSnapshot open(IndexReader reader, String path)
+            throws IOException {
+        File file = new File(path);
+        if (!file.exists())
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return read(reader, raf, path);
+        } catch (EOFException e) {
+            System.err.println("Warning: ignoring truncated index snapshot "
+                    + path);
+        } catch (IOException e) {
+            System.err.println("Warning: cannot map index snapshot " + path
+                    + ": " + e);
+        } catch (RuntimeException e) {
+            System.err.println("Warning: cannot map index snapshot " + path
+                    + ": " + e);
+        } finally {
+            raf.close(); // the mappings stay valid
+        }
+        return null;
+    }
+
+    /**
+     * Read the header of a snapshot and map its sections.
+     *
+     * @return The snapshot, or null if it is stale.
+     */
+    private static IndexSnapshot read(IndexReader reader, RandomAccessFile raf,
+            String path) throws IOException {
+        if (raf.length() < 28 || raf.readInt() != MAGIC
+                || raf.readInt() != FORMAT_VERSION
+                || raf.readLong() != indexVersion(reader)
+                || raf.readInt() != reader.maxDoc()
+                || raf.readInt() != reader.numDocs()) {
+            System.err.println("Warning: ignoring stale index snapshot "
+                    + path);
+            return null;
+        }
+
+        IndexSnapshot snapshot = new IndexSnapshot();
+        int numFields = raf.readInt();
+
+        for (int i = 0; i < numFields; i++) {
+            String field = raf.readUTF();
+            snapshot.fields.add(field);
+            snapshot.sumTotalTermFreq.put(field, raf.readLong());
+            snapshot.docCount.put(field, raf.readInt());
+        }
+
+        int maxDoc = reader.maxDoc();
+        for (int i = 0; i < numFields; i++)
+            snapshot.lengths.add(mapSection(raf, 4L * maxDoc).asIntBuffer());
+
+        snapshot.externalIds = ExternalIdTable.read(raf);
+
+        return snapshot;
+    }
+
+    /**
+     * Memory-map the next section of a snapshot and move past it.
+     *
+     * @param raf
+     *            The snapshot file, positioned at the section.
+     * @param size
+     *            The size of the section in bytes. Larger than 2GB cannot be
+     *            mapped.
+     * @return The section.
+     * @throws EOFException
+     *             If the file ends before the section does.
+     * @throws IOException
+     */
+    static ByteBuffer mapSection(RandomAccessFile raf, long size)
+            throws IOException {
+        long offset = raf.getFilePointer();
+        if (offset + size > raf.length())
+            throw new EOFException();
+
+        MappedByteBuffer buf = raf.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, offset, size);
+        raf.seek(offset + size);
+        return buf;
+    }
+
+    /**
+     * Write the snapshot of an index.
+     *
+     * @param reader
+     *            The index.
+     * @param path
+     *            The path of the snapshot file.
+     * @throws IOException
+     */
+    public static void write(IndexReader reader, String path)
+            throws IOException {
+        List<String> fields = new ArrayList<String>();
+        List<NumericDocValues> norms = new ArrayList<NumericDocValues>();
+
+        for (String field : MultiFields.getIndexedFields(reader)) {
+            NumericDocValues values = MultiDocValues.getNormValues(reader,
+                    field);
+            if (values != null) {
+                fields.add(field);
+                norms.add(values);
+            }
+        }
+
+        // Write to a temporary file first, so that a reader never maps a
+        // half-written snapshot.
+
+        File file = new File(path);
+        File tmp = new File(path + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(indexVersion(reader));
+            out.writeInt(reader.maxDoc());
+            out.writeInt(reader.numDocs());
+            out.writeInt(fields.size());
+
+            for (String field : fields) {
+                out.writeUTF(field);
+                out.writeLong(reader.getSumTotalTermFreq(field));
+                out.writeInt(reader.getDocCount(field));
+            }
+
+            for (NumericDocValues values : norms)
+                for (int docid = 0; docid < reader.maxDoc(); docid++)
+                    out.writeInt((int) values.get(docid));
+
+            new ExternalIdTable(reader).write(out);
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete())
+            throw new IOException("Cannot replace " + path);
+        if (!tmp.renameTo(file))
+            throw new IOException("Cannot rename " + tmp + " to " + path);
+    }
+
+    /**
+     * The version of the index, which changes whenever the index does.
+     */
+    private static long indexVersion(IndexReader reader) {
+        if (reader instanceof DirectoryReader)
+            return ((DirectoryReader) reader).getVersion();
+        return 0;
+    }
+
+    /**
+     * Write the snapshot of an index.
+     *
+     * @param args
+     *            indexPath [snapshotPath]
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage:  java IndexSnapshot indexPath [snapshotPath]");
+            System.exit(1);
+        }
+
+        String path = (args.length > 1) ? args[1] : defaultPath(args[0]);
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(
+                args[0])));
+
+        long startTime = System.currentTimeMillis();
+        write(reader, path);
+        reader.close();
+
+        System.out.println("Wrote " + path + " in "
+                + ((System.currentTimeMillis() - startTime) / 1000.0) + "s");
+    }
+}
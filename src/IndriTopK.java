@@ -0,0 +1,282 @@
+/**
+ *  IndriTopK evaluates the top k documents of an Indri #AND or #WAND
+ *  whose arguments are all terms, without scoring every document that
+ *  contains a query term.  It is MaxScore in log space.
+ *
+ *  The score of a document is the product of s_i ^ w_i over the
+ *  arguments, where s_i is the argument's score if the document
+ *  contains it and its default score otherwise.  Each argument has an
+ *  upper bound for both cases (see QryopSlScore.openIndri).  A document
+ *  that contains none of the arguments is bounded by the product of the
+ *  default bounds; containing argument i raises the bound's log by at
+ *  most gain_i = w_i * (log maxScore_i - log maxDefault_i).  The
+ *  arguments with the smallest gains, whose gains cannot lift that
+ *  bound to the k'th best score so far, are non-essential: candidates
+ *  come only from the essential arguments, and the non-essential ones
+ *  are only read while the candidate can still reach the top k.  With
+ *  block-max summaries, a candidate is first bounded with the blocks of
+ *  the non-essential arguments that contain it.
+ *
+ *  Every document that is kept is scored exactly as the exhaustive
+ *  evaluators score it, so the top k are the same.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+public class IndriTopK {
+
+    // Bounds are in log space and summed in a different order than
+    // scores are multiplied, so a bound is only trusted to be below the
+    // threshold by more than this relative margin.
+    private static final double BOUND_SLACK = 1e-9;
+
+    private RetrievalModelIndri r;
+    private int n;
+    private QryopSlScore[] scorers;
+    private PostingCursor[] cursors;
+    private double[] exponents;
+
+    // per argument: w_i * log maxDefault_i and gain_i; both are 0 for an
+    // argument that never occurs, whose default score is 0 and is skipped
+    private double[] logDefaults;
+    private double[] gains;
+
+    private BlockMaxIndex.Blocks[] blocks;
+    private int[] block;
+
+    /**
+     * Open the arguments. Each argument must be a term or a #SCORE of a
+     * term; terms are wrapped in #SCORE operators in place, as
+     * allocDaaTPtrs does.
+     *
+     * @param args
+     *            The arguments of the #AND or #WAND operator.
+     * @param exponents
+     *            The exponent of each argument's score.
+     * @param r
+     *            A Indri retrieval model that controls how the operator
+     *            behaves.
+     * @param useBlocks
+     *            Whether to use block-max summaries.
+     * @throws IOException
+     */
+    public IndriTopK(List<Qryop> args, double[] exponents,
+            RetrievalModelIndri r, boolean useBlocks) throws IOException {
+        this.r = r;
+        this.n = args.size();
+        this.exponents = exponents;
+        this.scorers = new QryopSlScore[n];
+        this.cursors = new PostingCursor[n];
+        this.logDefaults = new double[n];
+        this.gains = new double[n];
+
+        if (useBlocks) {
+            this.blocks = new BlockMaxIndex.Blocks[n];
+            this.block = new int[n];
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (!(args.get(i) instanceof QryopSlScore))
+                args.set(i, new QryopSlScore(args.get(i)));
+
+            this.scorers[i] = (QryopSlScore) args.get(i);
+            this.cursors[i] = this.scorers[i].openIndri(r);
+            this.cursors[i].nextDoc();
+
+            double maxDefault = this.scorers[i].maxDefaultScoreIndri();
+            if (maxDefault == 0.0)
+                continue;
+
+            double maxScore = Math.max(this.scorers[i].maxScoreIndri(),
+                    maxDefault);
+            this.logDefaults[i] = exponents[i] * Math.log(maxDefault);
+            this.gains[i] = exponents[i] * Math.log(maxScore)
+                    - this.logDefaults[i];
+
+            if (useBlocks)
+                this.blocks[i] = this.scorers[i].blockMaxIndri(r);
+        }
+    }
+
+    /**
+     * @return true if every argument is a term, so IndriTopK can evaluate
+     *         the operator.
+     */
+    public static boolean isFlat(List<Qryop> args) {
+        for (Qryop arg : args) {
+            if (arg instanceof QryopSlScore)
+                arg = arg.args.get(0);
+            if (!(arg instanceof QryopIlTerm))
+                return false;
+        }
+        return args.size() > 0;
+    }
+
+    /**
+     * @return true if a document whose log score is at most bound cannot
+     *         enter the top k.
+     */
+    private static boolean belowThreshold(double bound, double threshold) {
+        return bound + BOUND_SLACK * Math.max(1.0, Math.abs(threshold)) < threshold;
+    }
+
+    /**
+     * The log-space gain of argument i over its default bound, for a
+     * document that it contains with score s.
+     */
+    private double gain(int i, double s) {
+        return this.exponents[i] * Math.log(s) - this.logDefaults[i];
+    }
+
+    /**
+     * The largest gain of argument i for a document in the docid range of
+     * its current block, or 0 if the argument has no postings there.
+     */
+    private double blockGain(int i, int docid) {
+        if (this.blocks[i] == null)
+            return 0.0;
+
+        this.block[i] = this.blocks[i].findBlock(this.block[i], docid);
+        if (this.block[i] >= this.blocks[i].size())
+            return 0.0;
+
+        double max = this.blocks[i].getMaxScore(this.block[i]);
+        return Math.max(gain(i, max), 0.0);
+    }
+
+    /**
+     * Score a document exactly as QryopSlAnd and QryopSlWand do, and as
+     * the root exponentiates it: the sum of the argument log scores, in
+     * argument order, each times its exponent, skipping zero default
+     * scores.
+     */
+    private double score(int docid) throws IOException {
+        double docScore = 0.0;
+        for (int i = 0; i < n; i++) {
+            double s;
+            if (this.cursors[i].docID() == docid)
+                s = Math.log(this.scorers[i].scoreIndri(docid,
+                        this.cursors[i].freq()));
+            else {
+                s = this.scorers[i].getDefaultScore(this.r, docid);
+                if (s == Double.NEGATIVE_INFINITY)
+                    continue; // discard this term
+            }
+            docScore += this.exponents[i] * s;
+        }
+        return Math.exp(docScore);
+    }
+
+    /**
+     * Evaluate the top k documents.
+     *
+     * @param k
+     *            The number of documents to return.
+     * @return The top k documents, with the same scores as exhaustive
+     *         evaluation at the root of a query.
+     * @throws IOException
+     */
+    public QryResult evaluate(int k) throws IOException {
+        TopKCollector collector = new TopKCollector(k);
+
+        // the bound of a document that contains no argument
+        double base = 0.0;
+        for (int i = 0; i < n; i++)
+            base += this.logDefaults[i];
+
+        // arguments sorted by gain, and the running sums of their gains
+        Integer[] byGain = new Integer[n];
+        for (int i = 0; i < n; i++)
+            byGain[i] = i;
+        Arrays.sort(byGain, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(gains[a], gains[b]);
+            }
+        });
+
+        int[] order = new int[n];
+        double[] gainSums = new double[n];
+        double[] restGains = new double[n];
+        for (int p = 0; p < n; p++) {
+            order[p] = byGain[p];
+            gainSums[p] = ((p > 0) ? gainSums[p - 1] : 0.0)
+                    + this.gains[order[p]];
+        }
+
+        while (true) {
+            double kth = collector.threshold();
+            double threshold = (kth > 0.0) ? Math.log(kth)
+                    : Double.NEGATIVE_INFINITY;
+
+            // the first essential argument
+            int first = 0;
+            while (first < n
+                    && belowThreshold(base + gainSums[first], threshold))
+                first++;
+            if (first == n)
+                break;
+
+            // the next candidate is the smallest document of the essential
+            // arguments
+            int docid = PostingCursor.NO_MORE_DOCS;
+            for (int p = first; p < n; p++)
+                docid = Math.min(docid, this.cursors[order[p]].docID());
+            if (docid == PostingCursor.NO_MORE_DOCS)
+                break;
+
+            // the bound of the candidate from the essential arguments
+            double bound = base;
+            for (int p = first; p < n; p++) {
+                int i = order[p];
+                if (this.cursors[i].docID() == docid)
+                    bound += gain(i, this.scorers[i].scoreIndri(docid,
+                            this.cursors[i].freq()));
+            }
+
+            // the non-essential arguments, bounded by their blocks if there
+            // are block summaries, and otherwise by their gains
+            double rest = (first > 0) ? gainSums[first - 1] : 0.0;
+            if (this.blocks != null) {
+                rest = 0.0;
+                for (int p = 0; p < first; p++) {
+                    restGains[p] = blockGain(order[p], docid);
+                    rest += restGains[p];
+                }
+            } else {
+                for (int p = 0; p < first; p++)
+                    restGains[p] = this.gains[order[p]];
+            }
+
+            // replace the non-essential bounds by scores, largest first
+            bound += rest;
+            int p = first - 1;
+            for (; p >= 0 && !belowThreshold(bound, threshold); p--) {
+                int i = order[p];
+                PostingCursor cursor = this.cursors[i];
+                bound -= restGains[p];
+                if (cursor.docID() < docid)
+                    cursor.advance(docid);
+                if (cursor.docID() == docid)
+                    bound += gain(i, this.scorers[i].scoreIndri(docid,
+                            cursor.freq()));
+            }
+
+            // every argument is on or past the candidate
+            if (p < 0)
+                collector.collect(docid, score(docid));
+
+            for (p = first; p < n; p++)
+                if (this.cursors[order[p]].docID() == docid)
+                    this.cursors[order[p]].nextDoc();
+        }
+
+        QryResult result = new QryResult();
+        result.docScores = collector.topDocs();
+        return result;
+    }
+}
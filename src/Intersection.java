@@ -0,0 +1,111 @@
+/**
+ *  Intersection finds the documents that every one of a set of posting
+ *  cursors contains.  The cursors leapfrog: each one is advanced to the
+ *  largest docid seen so far, so a long list skips over the gaps of a
+ *  short one instead of being read posting by posting.  The cursors are
+ *  visited shortest list first.
+ *
+ *  It also provides the galloping (exponential) search that in-memory
+ *  lists use to advance: the step doubles until it passes the target,
+ *  then a binary search finds it, so skipping d postings costs
+ *  O(log d).
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class Intersection {
+
+    private PostingCursor[] cursors;
+    private int docid = -1;
+
+    /**
+     * @param cursors
+     *            Unpositioned cursors. Their order is not changed; the
+     *            intersection visits them shortest list first.
+     */
+    public Intersection(PostingCursor[] cursors) {
+        this.cursors = Arrays.copyOf(cursors, cursors.length);
+        Arrays.sort(this.cursors, new Comparator<PostingCursor>() {
+            public int compare(PostingCursor a, PostingCursor b) {
+                return a.df - b.df;
+            }
+        });
+    }
+
+    /**
+     * Move every cursor to the next document that all of them contain.
+     *
+     * @return The document, or NO_MORE_DOCS.
+     * @throws IOException
+     */
+    public int nextDoc() throws IOException {
+        if (this.docid == PostingCursor.NO_MORE_DOCS || this.cursors.length == 0)
+            return (this.docid = PostingCursor.NO_MORE_DOCS);
+
+        int target = this.docid + 1;
+        int n = this.cursors.length;
+        int matched = 0;
+
+        for (int i = 0; matched < n; i = (i + 1 == n) ? 0 : i + 1) {
+            PostingCursor cursor = this.cursors[i];
+            int doc = cursor.docID();
+            if (doc < target)
+                doc = cursor.advance(target);
+
+            if (doc == PostingCursor.NO_MORE_DOCS)
+                return (this.docid = PostingCursor.NO_MORE_DOCS);
+
+            if (doc > target) {
+                target = doc; // the other cursors must reach this document
+                matched = 1;
+            } else
+                matched++;
+        }
+
+        return (this.docid = target);
+    }
+
+    /**
+     * Galloping search in a sorted array of docids.
+     *
+     * @param docids
+     *            The docids, in increasing order.
+     * @param from
+     *            The index to start from.
+     * @param end
+     *            The number of valid entries.
+     * @param target
+     *            The docid to look for.
+     * @return The first index at or after from whose docid is >= target, or
+     *         end if there is none.
+     */
+    public static int gallop(int[] docids, int from, int end, int target) {
+        if (from >= end || docids[from] >= target)
+            return from;
+
+        // docids[lo] < target; double the step until docids[hi] >= target
+        int lo = from, step = 1, hi = from + 1;
+        while (hi < end && docids[hi] < target) {
+            lo = hi;
+            step <<= 1;
+            hi = lo + step;
+        }
+        if (hi > end)
+            hi = end;
+
+        // the answer is in (lo, hi]
+        lo++;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (docids[mid] < target)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
@@ -4,52 +4,41 @@
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
  *
+ *  Postings are stored in a compressed-sparse-row (CSR) layout:
+ *  parallel int arrays hold the docids and tfs, posOffsets[n] is the
+ *  index of the n'th posting's first position in the shared positions
+ *  array, and posOffsets[n+1] marks its end.  This avoids allocating
+ *  an object (and boxed positions) for every posting.
+ *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
 import java.util.*;
 import java.io.*;
 
-import org.apache.lucene.index.*;
-import org.apache.lucene.util.*;
-import org.apache.lucene.search.*;
-
 public class InvList {
 
-  //  Utility class that makes it easier to construct postings.
-
-  public class DocPosting {
+  //  Initial capacity of the growable arrays.
 
-    public int docid = 0;
-    public int tf = 0;
-    public Vector<Integer> positions = new Vector<Integer>();
-    public String extId = null;
-
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
-
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-    
-    public int getDocId() {
-        return docid;
-    }
-  }
+  private static final int INITIAL_CAPACITY = 16;
 
   //  Class variables.
 
   public int ctf = 0;
   public int df = 0;
   public String field;
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+
+  //  False if the list only has docids and tfs.
+
+  public boolean hasPositions = true;
+
+  //  The postings, in CSR format.  Only the first df entries of
+  //  docids and tfs (and df+1 entries of posOffsets) are valid.
+
+  int[] docids = new int[INITIAL_CAPACITY];
+  int[] tfs = new int[INITIAL_CAPACITY];
+  int[] posOffsets = new int[INITIAL_CAPACITY + 1];
+  int[] positions = new int[INITIAL_CAPACITY];
 
   /**
    *  Constructor.  An empty inverted list. Useful for some query operators.
@@ -71,40 +60,45 @@ public class InvList {
    *  @throws IOException
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(new PostingCursor.IndexCursor(termString, fieldString));
+  }
 
-    //  Store the field name.  This is used by other query operators.
-
-    this.field = new String (fieldString);
+  /**
+   *  Copy the rest of a posting cursor into a new inverted list.
+   *  Most query operators walk cursors directly; use this only when
+   *  the whole list really must be kept in memory.
+   *  @param cursor An unpositioned posting cursor.
+   *  @throws IOException
+   */
+  public InvList(PostingCursor cursor) throws IOException {
 
-    //  Prepare to access the index.
+    //  Store the field name.  This is used by other query operators.
 
-    BytesRef termBytes = new BytesRef(termString);
-    Term term = new Term(fieldString, termBytes);
+    this.field = new String (cursor.field);
+    this.hasPositions = cursor.hasPositions();
 
-    if (QryEval.READER.docFreq(term) < 1)
-      return;
+    //  Copy from the cursor to our inverted list format.
 
-    //  Lookup the inverted list.
+    while (cursor.nextDoc() != PostingCursor.NO_MORE_DOCS) {
 
-    DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(QryEval.READER,
-				       MultiFields.getLiveDocs(QryEval.READER),
-				       fieldString, termBytes);
+      int tf = cursor.freq();
 
-    //  Copy from Lucene inverted list format to our inverted list
-    //  format. This is a little inefficient, but allows query
-    //  operators such as #SYN and #NEAR/n to be insulated from the
-    //  details of Lucene inverted list implementations.
+      if (! this.hasPositions) {
+	appendPosting (cursor.docID(), tf);
+	continue;
+      }
 
-    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      ensurePostingCapacity(this.df + 1);
+      ensurePositionCapacity(this.posOffsets[this.df] + tf);
 
-      int tf = iList.freq();
-      int[] positions = new int[tf];
+      int offset = this.posOffsets[this.df];
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[offset + j] = cursor.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
+      this.docids[this.df] = cursor.docID();
+      this.tfs[this.df] = tf;
+      this.posOffsets[this.df + 1] = offset + tf;
       this.df++;
       this.ctf += tf;
     }
@@ -113,34 +107,132 @@ public class InvList {
   /**
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
-   *  @param n The posting internal document id.
-   *  @param positions A list of positions where the term occurs.
+   *  @param docid The posting internal document id.
+   *  @param positions An array of positions where the term occurs.
+   *  @param length The number of valid entries in positions.
    *  @result true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
+  public boolean appendPosting (int docid, int[] positions, int length) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    ensurePostingCapacity(this.df + 1);
+    ensurePositionCapacity(this.posOffsets[this.df] + length);
 
-    this.postings.add (p);
+    int offset = this.posOffsets[this.df];
+    System.arraycopy(positions, 0, this.positions, offset, length);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = length;
+    this.posOffsets[this.df + 1] = offset + length;
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += length;
     return true;
   }
 
+  /**
+   *  Append a posting without positions.  The list becomes a list
+   *  without positions, so don't mix this with the other appendPosting.
+   *  Posting must be appended in docid order, otherwise this method
+   *  fails.
+   *  @param docid The posting internal document id.
+   *  @param tf The term frequency in the document.
+   *  @result true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
+      return false;
+
+    ensurePostingCapacity(this.df + 1);
+
+    this.hasPositions = false;
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.df ++;
+    this.ctf += tf;
+    return true;
+  }
+
+  /**
+   *  Grow the per-posting arrays so that they can hold n postings.
+   */
+  private void ensurePostingCapacity(int n) {
+    if (n <= this.docids.length)
+      return;
+
+    int capacity = Math.max(n, this.docids.length << 1);
+    this.docids = Arrays.copyOf(this.docids, capacity);
+    this.tfs = Arrays.copyOf(this.tfs, capacity);
+    this.posOffsets = Arrays.copyOf(this.posOffsets, capacity + 1);
+  }
+
+  /**
+   *  Grow the positions array so that it can hold n positions.
+   */
+  private void ensurePositionCapacity(int n) {
+    if (n <= this.positions.length)
+      return;
+
+    int capacity = Math.max(n, this.positions.length << 1);
+    this.positions = Arrays.copyOf(this.positions, capacity);
+  }
+
+  /**
+   *  Shrink the arrays to the number of postings and positions that
+   *  are actually used.  Useful before keeping a list for a long time.
+   */
+  public void trimToSize() {
+    this.docids = Arrays.copyOf(this.docids, this.df);
+    this.tfs = Arrays.copyOf(this.tfs, this.df);
+    this.posOffsets = Arrays.copyOf(this.posOffsets, this.df + 1);
+    this.positions = Arrays.copyOf(this.positions, this.posOffsets[this.df]);
+  }
+
+  /**
+   *  Estimate the memory used by this inverted list, in bytes.
+   */
+  public long ramBytesUsed() {
+    long ints = (long) this.docids.length + this.tfs.length
+      + this.posOffsets.length + this.positions.length;
+
+    //  4 bytes per int, plus a rough allowance for the object and
+    //  array headers.
+
+    return 4 * ints + 96;
+  }
+
+  /**
+   *  Get a cursor that walks this inverted list.
+   */
+  public PostingCursor cursor() {
+    return new PostingCursor.ListCursor(this);
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param n The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.postings.get(n).docid;
+    return this.docids[n];
+  }
+
+  /**
+   *  Find the first posting at or after the from'th whose docid is >=
+   *  docid, by galloping search.
+   *  @param from The index to start from.
+   *  @param docid The internal document id to look for.
+   *  @return Its index, or df if there is none.
+   */
+  public int advance(int from, int docid) {
+    return Intersection.gallop(this.docids, from, this.df, docid);
   }
 
   /**
@@ -149,32 +241,77 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
   }
-  
+
   /**
    *  Get the i'th position of the n'th document in inverted list.
    *  @param n The index of the requested document.
    *  @param i The index of the requested position.
-   *  @JK I just feel it's very hard to access the position list...
    */
   public int getPos(int n, int i) {
-      return this.postings.get(n).positions.get(i);      
+      return this.positions[this.posOffsets[n] + i];
   }
-  
-  public Vector<Integer> getPosVector(int n) {
-      return this.postings.get(n).positions;      
+
+  /**
+   *  Get the index of the n'th document's first position in the
+   *  shared positions array.  Operators that scan many positions of
+   *  one posting can read getPositions()[getPosOffset(n) + i] directly.
+   *  @param n The index of the requested document.
+   */
+  public int getPosOffset(int n) {
+      return this.posOffsets[n];
   }
-  
-  public static int TermCompare(DocPosting p1, DocPosting p2) {
-      if (p2.tf < p1.tf)
+
+  /**
+   *  Get the shared positions array.  Only read it through
+   *  getPosOffset and getTf.
+   */
+  public int[] getPositions() {
+      return this.positions;
+  }
+
+  /**
+   *  Compare the n1'th and n2'th postings by tf, larger tf first.
+   */
+  public int TermCompare(int n1, int n2) {
+      if (this.tfs[n2] < this.tfs[n1])
           return -1;
-      else if (p2.tf > p1.tf)
+      else if (this.tfs[n2] > this.tfs[n1])
           return 1;
       else
           return 0;
   }
 
+  /**
+   *  Reorder the postings.  After the call, the n'th posting is the
+   *  posting that was at index order[n] before the call.
+   *  @param order A permutation of 0..df-1.
+   */
+  public void reorder(int[] order) {
+    int[] newDocids = new int[this.df];
+    int[] newTfs = new int[this.df];
+    int[] newOffsets = new int[this.df + 1];
+    int[] newPositions = new int[this.posOffsets[this.df]];
+
+    for (int n = 0; n < this.df; n++) {
+      int old = order[n];
+      int tf = this.tfs[old];
+      int length = this.posOffsets[old + 1] - this.posOffsets[old];
+
+      System.arraycopy(this.positions, this.posOffsets[old],
+		       newPositions, newOffsets[n], length);
+      newDocids[n] = this.docids[old];
+      newTfs[n] = tf;
+      newOffsets[n + 1] = newOffsets[n] + length;
+    }
+
+    this.docids = newDocids;
+    this.tfs = newTfs;
+    this.posOffsets = newOffsets;
+    this.positions = newPositions;
+  }
+
   /**
    *  Print the inverted list.  This is handy for debugging.
    */
@@ -183,11 +320,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; this.hasPositions && j < this.tfs[i]; j++) {
+        System.out.print(getPos(i, j) + " ");
       }
 
       System.out.println();
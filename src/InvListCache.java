@@ -0,0 +1,178 @@
+/**
+ *  A posting-list cache shared by all queries.  It keeps the
+ *  inverted lists of recently used (term, field) pairs in memory so
+ *  that repeated head terms are read from the index only once.  The
+ *  cache is bounded by a byte budget; when it is full, the least
+ *  recently used lists are evicted until the new list fits.
+ *
+ *  Only whole-index lists are cached.  When evaluation in the current
+ *  thread is restricted to one segment (see QryEval.isSegmentScoped),
+ *  a list only has that segment's postings, so it bypasses the cache.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
+public class InvListCache {
+
+    // maximum and current size of the cached lists, in bytes
+    private long maxBytes;
+    private long usedBytes = 0;
+
+    // statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    // cached lists in access order, so the eldest entry is the least
+    // recently used one
+    private LinkedHashMap<String, InvList> lists = new LinkedHashMap<String, InvList>(
+            16, 0.75f, true);
+
+    /**
+     * Constructor.
+     * 
+     * @param maxBytes
+     *            The memory budget of the cache, in bytes.
+     */
+    public InvListCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the inverted list of a term, reading it from the index if it is
+     * not cached. The returned list is shared; callers must not modify it.
+     * Lists with and without positions are cached separately; a list with
+     * positions also serves requests that don't need them.
+     * 
+     * @param term
+     *            The processed (stemmed, lower-cased, etc) term string.
+     * @param field
+     *            The field that the term occurs in.
+     * @param positions
+     *            Whether the caller will read positions.
+     * @return The inverted list.
+     * @throws IOException
+     */
+    public InvList get(String term, String field, boolean positions)
+            throws IOException {
+        if (QryEval.isSegmentScoped())
+            return new InvList(new PostingCursor.IndexCursor(term, field,
+                    positions));
+
+        String key = term + "." + field;
+        String docsKey = key + "#docs";
+
+        synchronized (this) {
+            InvList list = this.lists.get(key);
+            if (list == null && !positions)
+                list = this.lists.get(docsKey);
+            if (list != null) {
+                this.hits++;
+                return list;
+            }
+            this.misses++;
+        }
+
+        // Read the list without holding the lock, so that other threads
+        // can use the cache meanwhile.
+
+        if (!positions)
+            key = docsKey;
+
+        InvList list = new InvList(new PostingCursor.IndexCursor(term, field,
+                positions));
+        list.trimToSize();
+        put(key, list);
+
+        return list;
+    }
+
+    /**
+     * Open a cursor on the inverted list of a term, walking the cached list
+     * if evaluation is not restricted to one segment. Like an IndexCursor,
+     * its df and ctf are the live statistics of the whole index.
+     * 
+     * @param term
+     *            The processed (stemmed, lower-cased, etc) term string.
+     * @param field
+     *            The field that the term occurs in.
+     * @param positions
+     *            Whether the caller will read positions.
+     * @return An unpositioned cursor.
+     * @throws IOException
+     */
+    public PostingCursor cursor(String term, String field, boolean positions)
+            throws IOException {
+        if (QryEval.isSegmentScoped())
+            return new PostingCursor.IndexCursor(term, field, positions);
+
+        PostingCursor cursor = get(term, field, positions).cursor();
+
+        CollectionStats.TermStats stats = QryEval.stats
+                .liveTermStats(new Term(field, new BytesRef(term)));
+        cursor.df = stats.df;
+        cursor.ctf = (int) stats.ctf;
+
+        return cursor;
+    }
+
+    /**
+     * Add a list to the cache, evicting the least recently used lists until
+     * it fits. Lists larger than the whole budget are not cached.
+     */
+    private synchronized void put(String key, InvList list) {
+        long size = list.ramBytesUsed();
+
+        if (size > this.maxBytes || this.lists.containsKey(key))
+            return;
+
+        Iterator<Map.Entry<String, InvList>> it = this.lists.entrySet()
+                .iterator();
+        while (this.usedBytes + size > this.maxBytes && it.hasNext()) {
+            this.usedBytes -= it.next().getValue().ramBytesUsed();
+            it.remove();
+            this.evictions++;
+        }
+
+        this.lists.put(key, list);
+        this.usedBytes += size;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    /**
+     * Print the cache statistics.
+     */
+    public synchronized void printStats() {
+        long lookups = this.hits + this.misses;
+
+        System.out.println("Posting cache: " + this.hits + " hits, "
+                + this.misses + " misses ("
+                + (lookups == 0 ? 0 : (100 * this.hits / lookups))
+                + "% hit rate), " + this.evictions + " evictions, "
+                + (this.usedBytes / 1024) + " / " + (this.maxBytes / 1024)
+                + " KB used");
+    }
+}
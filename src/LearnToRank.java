@@ -220,17 +220,17 @@ public class LearnToRank {
             buildMap(bm25_inlink, bm25Map_inlink);
 
             // Indri
-            QryResult indri_body = QryEval.parseQuery(qryBody, Indri).evaluate(
-                    Indri);
+            QryResult indri_body = QryEval.evaluate(
+                    QryEval.parseQuery(qryBody, Indri), Indri);
             buildMap(indri_body, indriMap_body);
-            QryResult indri_url = QryEval.parseQuery(qryUrl, Indri).evaluate(
-                    Indri);
+            QryResult indri_url = QryEval.evaluate(
+                    QryEval.parseQuery(qryUrl, Indri), Indri);
             buildMap(indri_url, indriMap_url);
-            QryResult indri_title = QryEval.parseQuery(qryTitle, Indri)
-                    .evaluate(Indri);
+            QryResult indri_title = QryEval.evaluate(
+                    QryEval.parseQuery(qryTitle, Indri), Indri);
             buildMap(indri_title, indriMap_title);
-            QryResult indri_inlink = QryEval.parseQuery(qryInlink, Indri)
-                    .evaluate(Indri);
+            QryResult indri_inlink = QryEval.evaluate(
+                    QryEval.parseQuery(qryInlink, Indri), Indri);
             buildMap(indri_inlink, indriMap_inlink);
             
             // simple SDM feat:17
@@ -250,8 +250,8 @@ public class LearnToRank {
                         sdm.append(") ");
                     }
                 }
-                QryResult indri_sdm = QryEval.parseQuery(sdm.toString(), Indri)
-                        .evaluate(Indri);
+                QryResult indri_sdm = QryEval.evaluate(
+                        QryEval.parseQuery(sdm.toString(), Indri), Indri);
                 buildMap(indri_sdm, indriMap_SDM);
             }
             
@@ -456,7 +456,7 @@ public class LearnToRank {
                     stems[i] = ithTerm.term().utf8ToString();
                     stemsFreq[i] = (int) ithTerm.totalTermFreq();
                 }
-                double N = (double) QryEval.READER.numDocs();
+                double N = (double) QryEval.stats.numDocs();
                 double docVecLen = 0;
                 double qryVecLen = 0;
                 double dotProd = 0;
@@ -465,14 +465,14 @@ public class LearnToRank {
                     docVecLen += Math.pow(Math.log(stemsFreq[i]) + 1, 2);
                     for (String token : tokens) {
                         if (token.equals(stems[i])) {
-                            int df = QryEval.READER.docFreq(new Term("title", token));
+                            int df = QryEval.stats.docFreq(new Term("title", token));
                             dotProd += (Math.log(stemsFreq[i]) + 1) * Math.log(N / df);
                         }
                     }
                 }
                 
                 for (String token : tokens) {
-                    int df = QryEval.READER.docFreq(new Term("title", token));
+                    int df = QryEval.stats.docFreq(new Term("title", token));
                     qryVecLen += Math.pow(Math.log(N / df), 2);
                 }
                 
@@ -597,7 +597,7 @@ public class LearnToRank {
 
     private void buildMap(QryResult result, HashMap<Integer, Double> map)
             throws IOException {
-        for (int i = 0; i < result.docScores.scores.size(); i++) {
+        for (int i = 0; i < result.docScores.size(); i++) {
             int docid = result.docScores.getDocid(i);
             double score = result.docScores.getDocidScore(i);
             //String extid = QryEval.getExternalDocid(docid);
@@ -635,17 +635,17 @@ public class LearnToRank {
             buildMap(bm25_inlink, bm25Map_inlink);
 
             // Indri
-            QryResult indri_body = QryEval.parseQuery(qryBody, Indri).evaluate(
-                    Indri);
+            QryResult indri_body = QryEval.evaluate(
+                    QryEval.parseQuery(qryBody, Indri), Indri);
             buildMap(indri_body, indriMap_body);
-            QryResult indri_url = QryEval.parseQuery(qryUrl, Indri).evaluate(
-                    Indri);
+            QryResult indri_url = QryEval.evaluate(
+                    QryEval.parseQuery(qryUrl, Indri), Indri);
             buildMap(indri_url, indriMap_url);
-            QryResult indri_title = QryEval.parseQuery(qryTitle, Indri)
-                    .evaluate(Indri);
+            QryResult indri_title = QryEval.evaluate(
+                    QryEval.parseQuery(qryTitle, Indri), Indri);
             buildMap(indri_title, indriMap_title);
-            QryResult indri_inlink = QryEval.parseQuery(qryInlink, Indri)
-                    .evaluate(Indri);
+            QryResult indri_inlink = QryEval.evaluate(
+                    QryEval.parseQuery(qryInlink, Indri), Indri);
             buildMap(indri_inlink, indriMap_inlink);
             
             // simple SDM feat:17
@@ -665,8 +665,8 @@ public class LearnToRank {
                         sdm.append(") ");
                     }
                 }
-                QryResult indri_sdm = QryEval.parseQuery(sdm.toString(), Indri)
-                        .evaluate(Indri);
+                QryResult indri_sdm = QryEval.evaluate(
+                        QryEval.parseQuery(sdm.toString(), Indri), Indri);
                 buildMap(indri_sdm, indriMap_SDM);
             }
 
@@ -838,20 +838,16 @@ public class LearnToRank {
     }
 
     private ArrayList<String> getInitialRanking(String query) throws Exception {
-        QryResult result = QryEval.parseQuery(query, BM25).evaluate(BM25);
-        QryEval.sortResult(result, true);
+        QryResult result = QryEval.evaluateTopK(
+                QryEval.parseQuery(query, BM25), BM25, 100);
+        QryEval.sortResult(result, true, 100);
 
         ArrayList<String> topfilelist = new ArrayList<String>();
 
-        int bound = Math.min(100, result.docScores.scores.size());
+        int bound = Math.min(100, result.docScores.size());
         for (int i = 0; i < bound; i++) {
-            String extid = result.docScores.scores.get(i).extId;
-            if (extid != null)
-                topfilelist.add(extid);
-            else {
-                int docid = result.docScores.getDocid(i);
-                topfilelist.add(QryEval.getExternalDocid(docid));
-            }
+            int docid = result.docScores.getDocid(i);
+            topfilelist.add(QryEval.getExternalDocid(docid));
         }
 
         return topfilelist;
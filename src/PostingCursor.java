@@ -0,0 +1,293 @@
+/**
+ *  A PostingCursor walks an inverted list one posting at a time
+ *  without copying it into memory first.  It follows the Lucene
+ *  iterator protocol: the cursor starts before the first posting
+ *  (docID() == -1), nextDoc and advance move it forward, and freq
+ *  and nextPosition describe the current posting.  Positions of the
+ *  current posting can be read only once, in increasing order.
+ *
+ *  Query operators get cursors from QryopIl.cursor, so a term's
+ *  postings are streamed straight from the index and memory stays
+ *  bounded by the width of the query rather than the list length.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+public abstract class PostingCursor {
+
+    public static final int NO_MORE_DOCS = DocIdSetIterator.NO_MORE_DOCS;
+
+    // Statistics of the whole list, available before the first posting
+    // is read. Scoring operators need them up front.
+    public String field;
+    public int df = 0;
+    public int ctf = 0;
+
+    /**
+     * @return The current internal document id, -1 if the cursor is not
+     *         positioned yet, or NO_MORE_DOCS if it is exhausted.
+     */
+    public abstract int docID();
+
+    /**
+     * Move to the next posting.
+     *
+     * @return The new current document id, or NO_MORE_DOCS.
+     */
+    public abstract int nextDoc() throws IOException;
+
+    /**
+     * Move to the first posting whose document id is >= target. The target
+     * must be larger than the current document id.
+     *
+     * @param target
+     *            The internal document id to look for.
+     * @return The new current document id, or NO_MORE_DOCS.
+     */
+    public abstract int advance(int target) throws IOException;
+
+    /**
+     * @return The term frequency in the current document.
+     */
+    public abstract int freq() throws IOException;
+
+    /**
+     * @return The next position of the term in the current document.
+     */
+    public abstract int nextPosition() throws IOException;
+
+    /**
+     * @return true if nextPosition can be called on this cursor.
+     */
+    public abstract boolean hasPositions();
+
+    /**
+     * Read all the positions of the current posting into buf, growing it if
+     * necessary.
+     *
+     * @param buf
+     *            A reusable buffer.
+     * @return buf, or a larger copy of it. The first freq() entries are valid.
+     */
+    public int[] readPositions(int[] buf) throws IOException {
+        int tf = freq();
+        if (buf.length < tf)
+            buf = new int[Math.max(tf, buf.length << 1)];
+        for (int i = 0; i < tf; i++)
+            buf[i] = nextPosition();
+        return buf;
+    }
+
+    /**
+     * A cursor that streams a term's postings from the index. The segments
+     * (leaves) of the index are read one after another, so no merged view
+     * of the index is needed; each segment's docids are rebased with its
+     * docBase and its own live docs are applied. When no positions are
+     * needed, only docids and freqs are decoded.
+     */
+    public static class IndexCursor extends PostingCursor {
+
+        private Term term;
+        private boolean positions;
+
+        // The segments to read and the one being read now
+        private List<AtomicReaderContext> leaves;
+        private int leaf = -1;
+        private int docBase = 0;
+        private int maxDoc = 0; // first docid after the current segment
+
+        // a DocsAndPositionsEnum if positions were requested
+        private DocsEnum postings = null;
+        private int docid = -1;
+
+        /**
+         * Open the inverted list of a term, including positions.
+         *
+         * @param termString
+         *            The processed (stemmed, lower-cased, etc) term string.
+         * @param fieldString
+         *            The field that the term occurs in.
+         * @throws IOException
+         */
+        public IndexCursor(String termString, String fieldString)
+                throws IOException {
+            this(termString, fieldString, true);
+        }
+
+        /**
+         * Open the inverted list of a term. Only the segments that query
+         * evaluation is restricted to are read (see QryEval.getSegments),
+         * but df and ctf always describe the whole index (see
+         * CollectionStats.liveTermStats).
+         *
+         * @param termString
+         *            The processed (stemmed, lower-cased, etc) term string.
+         * @param fieldString
+         *            The field that the term occurs in.
+         * @param positions
+         *            Whether positions will be read from the cursor.
+         * @throws IOException
+         */
+        public IndexCursor(String termString, String fieldString,
+                boolean positions) throws IOException {
+
+            this.field = new String(fieldString);
+            this.positions = positions;
+            this.term = new Term(fieldString, new BytesRef(termString));
+            this.leaves = QryEval.getSegments();
+
+            // The statistics only count live documents.
+
+            CollectionStats.TermStats stats = QryEval.stats
+                    .liveTermStats(this.term);
+
+            if (stats.df < 1) {
+                this.leaves = Collections.emptyList();
+                return;
+            }
+
+            this.df = stats.df;
+            this.ctf = (int) stats.ctf;
+        }
+
+        /**
+         * Move to the next segment that has postings for the term.
+         *
+         * @return false if there are no more segments.
+         */
+        private boolean nextLeaf() throws IOException {
+            this.postings = null;
+
+            while (this.postings == null) {
+                if (++this.leaf >= this.leaves.size())
+                    return false;
+
+                AtomicReaderContext context = this.leaves.get(this.leaf);
+                AtomicReader reader = context.reader();
+
+                // The segment-level enums apply the segment's live docs.
+
+                if (this.positions)
+                    this.postings = reader.termPositionsEnum(this.term);
+                else
+                    this.postings = reader.termDocsEnum(this.term);
+
+                this.docBase = context.docBase;
+                this.maxDoc = context.docBase + reader.maxDoc();
+            }
+            return true;
+        }
+
+        public boolean hasPositions() {
+            return this.positions;
+        }
+
+        public int docID() {
+            return this.docid;
+        }
+
+        public int nextDoc() throws IOException {
+            while (this.postings != null || nextLeaf()) {
+                int doc = this.postings.nextDoc();
+                if (doc != NO_MORE_DOCS)
+                    return (this.docid = this.docBase + doc);
+                this.postings = null;
+            }
+            return (this.docid = NO_MORE_DOCS);
+        }
+
+        public int advance(int target) throws IOException {
+
+            // Skip whole segments that end before the target.
+
+            while (this.postings == null || target >= this.maxDoc) {
+                if (!nextLeaf())
+                    return (this.docid = NO_MORE_DOCS);
+                if (target < this.maxDoc)
+                    break;
+            }
+
+            // The target may fall before a segment that was just opened.
+
+            if (target <= this.docBase)
+                return nextDoc();
+
+            int doc = this.postings.advance(target - this.docBase);
+            if (doc != NO_MORE_DOCS)
+                return (this.docid = this.docBase + doc);
+
+            this.postings = null;
+            return nextDoc();
+        }
+
+        public int freq() throws IOException {
+            return this.postings.freq();
+        }
+
+        public int nextPosition() throws IOException {
+            return ((DocsAndPositionsEnum) this.postings).nextPosition();
+        }
+    }
+
+    /**
+     * A cursor over an inverted list that is already in memory, e.g. the
+     * result of a #SYN or #NEAR operator.
+     */
+    public static class ListCursor extends PostingCursor {
+
+        private InvList list;
+        private int n = -1; // index of the current posting
+        private int nextPos = 0; // index of the next position to return
+
+        public ListCursor(InvList list) {
+            this.list = list;
+            this.field = list.field;
+            this.df = list.df;
+            this.ctf = list.ctf;
+        }
+
+        public boolean hasPositions() {
+            return this.list.hasPositions;
+        }
+
+        public int docID() {
+            if (this.n < 0)
+                return -1;
+            if (this.n >= this.list.df)
+                return NO_MORE_DOCS;
+            return this.list.getDocid(this.n);
+        }
+
+        public int nextDoc() {
+            this.n++;
+            this.nextPos = 0;
+            return docID();
+        }
+
+        public int advance(int target) {
+            this.n = this.list.advance(this.n + 1, target);
+            this.nextPos = 0;
+            return docID();
+        }
+
+        public int freq() {
+            return this.list.getTf(this.n);
+        }
+
+        public int nextPosition() {
+            return this.list.getPos(this.n, this.nextPos++);
+        }
+    }
+}
@@ -17,6 +17,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -25,19 +26,16 @@ import java.util.Map;
 import java.util.Scanner;
 import java.util.Stack;
 import java.util.StringTokenizer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
@@ -67,6 +65,46 @@ public class QryEval {
     // document length store
     public static DocLengthStore dls;
 
+    // collection and term statistics
+    public static CollectionStats stats;
+
+    // internal docid -> external id
+    public static ExternalIdTable externalIds;
+
+    // external id -> internal docid, built on first use
+    private static ExternalIdMap externalIdMap;
+
+    // posting-list cache shared by all queries (null if disabled)
+    public static InvListCache invListCache;
+
+    // block-max summaries of term postings, for Block-Max WAND
+    public static BlockMaxIndex blockMaxIndex;
+
+    // number of results written to the trec_eval output per query
+    // (parameter trecEvalOutputLength)
+    static int outputLength = 100;
+
+    // dynamic pruning for queries that only need their top documents
+    // (parameter pruning: "wand", "bmw" (Block-Max WAND), "maxscore" or
+    // "none")
+    static String pruning = "wand";
+
+    // evaluation strategy for flat queries (parameter evaluation: "daat",
+    // "taat" or "auto", which lets a cost model choose per query), and
+    // the TAAT accumulator limit (parameter taatAccumulators, 0 for none)
+    // with its strategy (parameter taatPruning: "continue" or "quit")
+    static String evaluation = "daat";
+    static int taatAccumulators = 0;
+    static boolean taatQuit = false;
+
+    // The index segments that query evaluation in the current thread is
+    // restricted to; null means all segments of the index.
+    private static final ThreadLocal<List<AtomicReaderContext>> segments = new ThreadLocal<List<AtomicReaderContext>>();
+
+    // The whole-index statistics of the derived inverted lists of the query
+    // that the current thread evaluates segment by segment (see listStats).
+    private static final ThreadLocal<Map<String, CollectionStats.TermStats>> listStats = new ThreadLocal<Map<String, CollectionStats.TermStats>>();
+
     /**
      * @param args
      *            The only argument is the path to the parameter file.
@@ -107,8 +145,42 @@ public class QryEval {
             System.exit(1);
         }
 
+        // use the index snapshot (see IndexSnapshot) if there is an
+        // up-to-date one, so that document lengths don't have to be read
+        // from the norms
+        String snapshotPath = params.containsKey("snapshotPath") ? params
+                .get("snapshotPath") : IndexSnapshot.defaultPath(params
+                .get("indexPath"));
+        IndexSnapshot snapshot = IndexSnapshot.open(READER, snapshotPath);
+
         // create document length store
-        dls = new DocLengthStore(READER);
+        dls = new DocLengthStore(READER, snapshot);
+
+        // load the external ids, so that they are never read from stored
+        // documents
+        externalIds = (snapshot != null) ? snapshot.externalIds
+                : new ExternalIdTable(READER);
+
+        // load the collection statistics; term statistics are cached for at
+        // most statsCacheTerms terms
+        int statsCacheTerms = 100000;
+        if (params.containsKey("statsCacheTerms"))
+            statsCacheTerms = Integer.parseInt(params.get("statsCacheTerms"));
+        stats = new CollectionStats(READER, snapshot, statsCacheTerms);
+
+        // create the posting-list cache if it has a memory budget
+        if (params.containsKey("postingCacheBytes")) {
+            long cacheBytes = Long.parseLong(params.get("postingCacheBytes"));
+            if (cacheBytes > 0)
+                invListCache = new InvListCache(cacheBytes);
+        }
+
+        // block-max summaries are kept for at most blockMaxCacheTerms terms
+        int blockMaxCacheTerms = 10000;
+        if (params.containsKey("blockMaxCacheTerms"))
+            blockMaxCacheTerms = Integer.parseInt(params
+                    .get("blockMaxCacheTerms"));
+        blockMaxIndex = new BlockMaxIndex(blockMaxCacheTerms);
 
         /**
          *  Start creating retrieval model
@@ -170,6 +242,55 @@ public class QryEval {
             System.exit(1);
         }
 
+        // number of documents to output for each query
+        if (params.containsKey("trecEvalOutputLength")) {
+            outputLength = Integer.parseInt(params.get("trecEvalOutputLength"));
+            if (outputLength < 1) {
+                System.err
+                        .println("Error: Wrong parameter value for trecEvalOutputLength");
+                System.exit(1);
+            }
+        }
+
+        // dynamic pruning strategy
+        if (params.containsKey("pruning")) {
+            pruning = params.get("pruning");
+            if (!pruning.equals("wand") && !pruning.equals("bmw")
+                    && !pruning.equals("maxscore") && !pruning.equals("none")) {
+                System.err
+                        .println("Error: Wrong parameter value for pruning");
+                System.exit(1);
+            }
+        }
+
+        // term-at-a-time evaluation
+        if (params.containsKey("evaluation")) {
+            evaluation = params.get("evaluation");
+            if (!evaluation.equals("daat") && !evaluation.equals("taat")
+                    && !evaluation.equals("auto")) {
+                System.err
+                        .println("Error: Wrong parameter value for evaluation");
+                System.exit(1);
+            }
+        }
+        if (params.containsKey("taatAccumulators")) {
+            taatAccumulators = Integer.parseInt(params.get("taatAccumulators"));
+            if (taatAccumulators < 0) {
+                System.err
+                        .println("Error: Wrong parameter value for taatAccumulators");
+                System.exit(1);
+            }
+        }
+        if (params.containsKey("taatPruning")) {
+            String val = params.get("taatPruning");
+            if (!val.equals("continue") && !val.equals("quit")) {
+                System.err
+                        .println("Error: Wrong parameter value for taatPruning");
+                System.exit(1);
+            }
+            taatQuit = val.equals("quit");
+        }
+
         // create output file
         BufferedWriter bw = null;
         try {
@@ -189,6 +310,19 @@ public class QryEval {
             fb = true;
         }
         
+        // evaluate each index segment on its own instead of the whole
+        // index at once; "parallel" evaluates the segments concurrently
+        boolean bySegment = params.containsKey("evaluateBySegment")
+                && "true".equals(params.get("evaluateBySegment"));
+        ForkJoinPool segmentPool = null;
+        if (params.containsKey("evaluateBySegment")
+                && "parallel".equals(params.get("evaluateBySegment"))) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (params.containsKey("segmentThreads"))
+                threads = Integer.parseInt(params.get("segmentThreads"));
+            segmentPool = new ForkJoinPool(threads);
+        }
+
         /**
          *  Start evaluating query, one query a time
          */
@@ -210,11 +344,21 @@ public class QryEval {
                     pair[1] = qryFb.DoQueryExpansion(query, model, isRankedModel);
                 }
                 // applying query parser
-                Qryop qTree = parseQuery(pair[1], model);
-                QryResult result = qTree.evaluate(model);
+                QryResult result = null;
+                if (segmentPool != null) {
+                    result = segmentPool.invoke(new QueryTask(pair[1], model,
+                            isRankedModel));
+                } else if (bySegment) {
+                    result = evaluateBySegment(pair[1], model);
+                } else {
+                    Qryop qTree = parseQuery(pair[1], model);
+                    result = evaluateTopK(qTree, model, outputLength);
+                }
 
-                // sort the result first anyway
-                sortResult(result, isRankedModel);
+                // keep the top outputLength documents, in output order; a
+                // QueryTask has already done so
+                if (segmentPool == null)
+                    sortResult(result, isRankedModel, outputLength);
 
                 // calculate the running time
                 endTime = System.currentTimeMillis();
@@ -256,6 +400,9 @@ public class QryEval {
             System.out.println("Total running time: "
                     + ((endTime - startTime) / 1000.0) + "s");
         }
+        if (invListCache != null)
+            invListCache.printStats();
+
         // Later HW assignments will use more RAM, so you want to be aware
         // of how much memory your program uses.
         printMemoryUsage(false);
@@ -268,14 +415,15 @@ public class QryEval {
     static void writeResultToFile(BufferedWriter br, String QryID,
             QryResult result, boolean isRankedModel) throws IOException {
 
-        if (result.docScores.scores.size() < 1
-                && result.invertedList.postings.size() < 1) {
+        if (result.docScores.size() < 1
+                && result.invertedList.df < 1) {
             // nothing in the result
             br.write(QryID + " Q0 dummy 1 0 None\n");
         } else {
-            if (result.invertedList.postings.isEmpty()) {
+            if (result.invertedList.df == 0) {
                 // output score list
-                int bound = Math.min(100, result.docScores.scores.size());
+                int bound = Math.min(outputLength,
+                        result.docScores.size());
                 if (isRankedModel) {
                     for (int i = 0; i < bound; i++) {
                         br.write(QryID
@@ -294,7 +442,7 @@ public class QryEval {
                 }
             } else {
                 // output inverted list, maybe should avoid this situation
-                int bound = Math.min(100, result.invertedList.postings.size());
+                int bound = Math.min(outputLength, result.invertedList.df);
                 if (isRankedModel) {
                     for (int i = 0; i < bound; i++) {
                         br.write(QryID
@@ -318,60 +466,160 @@ public class QryEval {
     }
 
     /**
-     * Result Sorting - with all type
+     * Sort the result and keep only its first k documents. Ranked score
+     * lists are selected with a TopKCollector instead of being sorted
+     * completely; unranked results are still fully sorted by external id.
+     */
+    static void sortResult(QryResult result, Boolean isRankedmodel, int k)
+            throws IOException {
+        if (isRankedmodel && result.invertedList.df == 0) {
+            TopKCollector collector = new TopKCollector(k);
+            collector.collectAll(result.docScores);
+            result.docScores = collector.topDocs();
+        } else {
+            sortResult(result, isRankedmodel);
+            result.docScores.truncate(k);
+        }
+    }
+
+    /**
+     * Result Sorting - with all type. Unranked results are sorted by external
+     * id with a radix sort over external id ordinals.
      */
     static void sortResult(QryResult result, Boolean isRankedmodel) {
         // select which list and what comparator to sort
-        if (result.invertedList.postings.isEmpty()) {
+        if (result.invertedList.df == 0) {
             // sort score list
+            ScoreList list = result.docScores;
             if (!isRankedmodel) {
-                entryComparatorUrk comp = new entryComparatorUrk();
-                Collections.sort(result.docScores.scores, comp);
+                int[] docids = new int[list.size()];
+                for (int i = 0; i < docids.length; i++)
+                    docids[i] = list.getDocid(i);
+
+                int[] order = ordinalOrder(docids);
+                if (order != null)
+                    list.reorder(order);
+                else
+                    list.sort(new entryComparatorUrk(list));
             } else {
-                entryComparatorRk comp = new entryComparatorRk();
-                Collections.sort(result.docScores.scores, comp);
+                entryComparatorRk comp = new entryComparatorRk(list);
+                list.sort(comp);
             }
 
         } else {
-            // sort inverted list
-            if (!isRankedmodel) {
-                postingComparatorUrk comp = new postingComparatorUrk();
-                Collections.sort(result.invertedList.postings, comp);
-            } else {
-                postingComparatorRk comp = new postingComparatorRk();
-                Collections.sort(result.invertedList.postings, comp);
+            // sort inverted list by sorting a permutation of its postings
+            InvList list = result.invertedList;
+            int[] perm = null;
+
+            if (!isRankedmodel)
+                perm = ordinalOrder(Arrays.copyOf(list.docids, list.df));
+
+            if (perm == null) {
+                Integer[] order = new Integer[list.df];
+                for (int i = 0; i < order.length; i++)
+                    order[i] = i;
+
+                if (!isRankedmodel) {
+                    postingComparatorUrk comp = new postingComparatorUrk(list);
+                    Arrays.sort(order, comp);
+                } else {
+                    postingComparatorRk comp = new postingComparatorRk(list);
+                    Arrays.sort(order, comp);
+                }
+
+                perm = new int[order.length];
+                for (int i = 0; i < perm.length; i++)
+                    perm[i] = order[i];
             }
+            list.reorder(perm);
+        }
+    }
 
+    /**
+     * Order entries by the external ids of their documents, with a stable
+     * LSD radix sort over external id ordinals, one byte per pass.
+     * 
+     * @param docids
+     *            The docid of each entry.
+     * @return The sorted permutation of the entry indexes, or null if a
+     *         document has no external id ordinal.
+     */
+    static int[] ordinalOrder(int[] docids) {
+        int n = docids.length;
+        int[] keys = new int[n];
+        int max = 0;
+        for (int i = 0; i < n; i++) {
+            keys[i] = externalIds.getOrdinal(docids[i]);
+            if (keys[i] < 0)
+                return null;
+            max = Math.max(max, keys[i]);
         }
+
+        int[] order = new int[n];
+        int[] tmp = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+
+        int[] counts = new int[257];
+        for (int shift = 0; shift == 0 || (max >>> shift) != 0; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++)
+                counts[((keys[order[i]] >>> shift) & 0xff) + 1]++;
+            for (int d = 0; d < 256; d++)
+                counts[d + 1] += counts[d];
+            for (int i = 0; i < n; i++)
+                tmp[counts[(keys[order[i]] >>> shift) & 0xff]++] = order[i];
+
+            int[] t = order;
+            order = tmp;
+            tmp = t;
+
+            if (shift == 24)
+                break;
+        }
+        return order;
+    }
+
+    /**
+     * Compare two documents by external id, in lexicographic order. The
+     * external id ordinals are compared when both documents have one, so
+     * the ids are not decoded.
+     * 
+     * @return A negative number, zero, or a positive number as the external
+     *         id of docid1 is less than, equal to, or greater than that of
+     *         docid2.
+     * @throws IOException
+     */
+    static int compareExternalIds(int docid1, int docid2) throws IOException {
+        int ord1 = externalIds.getOrdinal(docid1);
+        int ord2 = externalIds.getOrdinal(docid2);
+
+        if (ord1 >= 0 && ord2 >= 0)
+            return (ord1 < ord2) ? -1 : ((ord1 == ord2) ? 0 : 1);
+
+        return getExternalDocid(docid1).compareTo(getExternalDocid(docid2));
     }
 
     /**
-     * Score list output sorting comparator - Ranked model - since
-     * getExternalDocid() is very time consuming, so I cached the id when first
-     * use.
+     * Score list output sorting comparator - Ranked model - ties are broken
+     * by external id. Compares entry indexes of one score list.
      */
-    static class entryComparatorRk implements
-            Comparator<ScoreList.ScoreListEntry> {
-        public int compare(ScoreList.ScoreListEntry o1,
-                ScoreList.ScoreListEntry o2) {
-            int cmp = ScoreList.ScoreCompare(o1, o2);
+    static class entryComparatorRk implements ScoreList.IndexComparator {
+        private ScoreList list;
+
+        entryComparatorRk(ScoreList list) {
+            this.list = list;
+        }
+
+        public int compare(int o1, int o2) {
+            int cmp = list.ScoreCompare(o1, o2);
             int rtn = 0;
 
             try {
-                if (cmp == 0) {
-                    if (o1.extId != null && o2.extId != null)
-                        rtn = o1.extId.compareTo(o2.extId);
-                    else {
-                        if (o1.extId == null)
-                            o1.extId = new String(
-                                    getExternalDocid(o1.getDocId()));
-                        if (o2.extId == null)
-                            o2.extId = new String(
-                                    getExternalDocid(o2.getDocId()));
-
-                        rtn = o1.extId.compareTo(o2.extId);
-                    }
-                } else
+                if (cmp == 0)
+                    rtn = compareExternalIds(list.getDocid(o1),
+                            list.getDocid(o2));
+                else
                     rtn = cmp;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -382,27 +630,21 @@ public class QryEval {
     }
 
     /**
-     * Score list output sorting comparator - Unranked model - since
-     * getExternalDocid() is very time consuming, so I cached the id when first
-     * use.
+     * Score list output sorting comparator - Unranked model - sort by External
+     * DocID. Compares entry indexes of one score list.
      */
-    static class entryComparatorUrk implements
-            Comparator<ScoreList.ScoreListEntry> {
-        public int compare(ScoreList.ScoreListEntry o1,
-                ScoreList.ScoreListEntry o2) {
+    static class entryComparatorUrk implements ScoreList.IndexComparator {
+        private ScoreList list;
+
+        entryComparatorUrk(ScoreList list) {
+            this.list = list;
+        }
+
+        public int compare(int o1, int o2) {
             int rtn = 0;
 
             try {
-                if (o1.extId != null && o2.extId != null)
-                    rtn = o1.extId.compareTo(o2.extId);
-                else {
-                    if (o1.extId == null)
-                        o1.extId = new String(getExternalDocid(o1.getDocId()));
-                    if (o2.extId == null)
-                        o2.extId = new String(getExternalDocid(o2.getDocId()));
-
-                    rtn = o1.extId.compareTo(o2.extId);
-                }
+                rtn = compareExternalIds(list.getDocid(o1), list.getDocid(o2));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -412,30 +654,26 @@ public class QryEval {
     }
 
     /**
-     * Inverted list output sorting comparator - Ranked model - sort by External
-     * DocID - since getExternalDocid() is very time consuming, so I cached the
-     * id when first use.
+     * Inverted list output sorting comparator - Ranked model - ties are
+     * broken by External DocID. Compares posting indexes of one inverted
+     * list.
      */
-    static class postingComparatorRk implements Comparator<InvList.DocPosting> {
-        public int compare(InvList.DocPosting o1, InvList.DocPosting o2) {
-            int cmp = InvList.TermCompare(o1, o2);
+    static class postingComparatorRk implements Comparator<Integer> {
+        private InvList list;
+
+        postingComparatorRk(InvList list) {
+            this.list = list;
+        }
+
+        public int compare(Integer o1, Integer o2) {
+            int cmp = list.TermCompare(o1, o2);
             int rtn = 0;
 
             try {
-                if (cmp == 0) {
-                    if (o1.extId != null && o2.extId != null)
-                        rtn = o1.extId.compareTo(o2.extId);
-                    else {
-                        if (o1.extId == null)
-                            o1.extId = new String(
-                                    getExternalDocid(o1.getDocId()));
-                        if (o2.extId == null)
-                            o2.extId = new String(
-                                    getExternalDocid(o2.getDocId()));
-
-                        rtn = o1.extId.compareTo(o2.extId);
-                    }
-                } else
+                if (cmp == 0)
+                    rtn = compareExternalIds(list.getDocid(o1),
+                            list.getDocid(o2));
+                else
                     rtn = cmp;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -447,24 +685,20 @@ public class QryEval {
 
     /**
      * Inverted list output sorting comparator - Unranked model - sort by
-     * External DocID - since getExternalDocid() is very time consuming, so I
-     * cached the id when first use.
+     * External DocID. Compares posting indexes of one inverted list.
      */
-    static class postingComparatorUrk implements Comparator<InvList.DocPosting> {
-        public int compare(InvList.DocPosting o1, InvList.DocPosting o2) {
+    static class postingComparatorUrk implements Comparator<Integer> {
+        private InvList list;
+
+        postingComparatorUrk(InvList list) {
+            this.list = list;
+        }
+
+        public int compare(Integer o1, Integer o2) {
             int rtn = 0;
 
             try {
-                if (o1.extId != null && o2.extId != null)
-                    rtn = o1.extId.compareTo(o2.extId);
-                else {
-                    if (o1.extId == null)
-                        o1.extId = new String(getExternalDocid(o1.getDocId()));
-                    if (o2.extId == null)
-                        o2.extId = new String(getExternalDocid(o2.getDocId()));
-
-                    rtn = o1.extId.compareTo(o2.extId);
-                }
+                rtn = compareExternalIds(list.getDocid(o1), list.getDocid(o2));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -496,8 +730,12 @@ public class QryEval {
      * @throws IOException
      */
     static String getExternalDocid(int iid) throws IOException {
-        Document d = QryEval.READER.document(iid);
-        String eid = d.get("externalId");
+        String eid = externalIds.get(iid);
+        if (eid == null) {
+            // not indexed as a term; read the stored field
+            Document d = QryEval.READER.document(iid);
+            eid = d.get("externalId");
+        }
         return eid;
     }
 
@@ -512,22 +750,423 @@ public class QryEval {
      * @throws Exception
      */
     static int getInternalDocid(String externalId) throws Exception {
-        Query q = new TermQuery(new Term("externalId", externalId));
+        int docid = getExternalIdMap().get(externalId);
+        if (docid < 0)
+            throw new Exception("External id not found.");
+        return docid;
+    }
 
-        IndexSearcher searcher = new IndexSearcher(QryEval.READER);
-        TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-        searcher.search(q, collector);
-        ScoreDoc[] hits = collector.topDocs().scoreDocs;
+    /**
+     * Finds the internal document ids for many documents specified by their
+     * external ids.
+     * 
+     * @param externalIds
+     *            The external document ids.
+     * @return The internal doc ids, in the same order; -1 for an id that has
+     *         no document.
+     */
+    static int[] getInternalDocids(List<String> externalIds) {
+        return getExternalIdMap().get(externalIds);
+    }
 
-        if (hits.length < 1) {
-            throw new Exception("External id not found.");
-        } else {
-            return hits[0].doc;
-        }
+    /**
+     * The map from external ids to internal docids is built the first time
+     * it is needed, since most runs never use it.
+     */
+    private static synchronized ExternalIdMap getExternalIdMap() {
+        if (externalIdMap == null)
+            externalIdMap = new ExternalIdMap(READER, externalIds);
+        return externalIdMap;
     }
 
     static final String[] term_field = { "url", "keywords", "title", "inlink", "body" };
 
+    /**
+     * Get the index segments that query evaluation in the current thread
+     * reads. Posting cursors only visit these segments.
+     * 
+     * @return The segments (leaves) of the index, in docid order.
+     */
+    static List<AtomicReaderContext> getSegments() {
+        List<AtomicReaderContext> leaves = segments.get();
+        return (leaves != null) ? leaves : READER.leaves();
+    }
+
+    /**
+     * Restrict query evaluation in the current thread to one index segment.
+     * 
+     * @param leaf
+     *            The segment to read, or null to read the whole index.
+     */
+    static void setSegment(AtomicReaderContext leaf) {
+        if (leaf == null)
+            segments.remove();
+        else
+            segments.set(Collections.singletonList(leaf));
+    }
+
+    /**
+     * @return true if query evaluation in the current thread is restricted
+     *         to one index segment.
+     */
+    static boolean isSegmentScoped() {
+        return segments.get() != null;
+    }
+
+    /**
+     * Compute the whole-index statistics of each inverted list that a query
+     * tree builds with #SYN, #NEAR or #WINDOW and scores. A list that only
+     * covers one segment has the wrong df and ctf, so evaluation restricted
+     * to a segment uses these instead (see setListStats). Each list is
+     * evaluated over the whole index once, or not at all if its statistics
+     * are cached. Evaluation must not be restricted to a segment.
+     * 
+     * @param qTree
+     *            A query tree. It is evaluated, so it must not be reused.
+     * @param model
+     *            The retrieval model.
+     * @return The statistics of each list, by the string version of its
+     *         operator.
+     * @throws IOException
+     */
+    static Map<String, CollectionStats.TermStats> listStats(Qryop qTree,
+            RetrievalModel model) throws IOException {
+        Map<String, CollectionStats.TermStats> result = new HashMap<String, CollectionStats.TermStats>();
+        if (model instanceof RetrievalModelBM25
+                || model instanceof RetrievalModelIndri)
+            addListStats(qTree, model, result);
+        return result;
+    }
+
+    private static void addListStats(Qryop op, RetrievalModel model,
+            Map<String, CollectionStats.TermStats> result) throws IOException {
+        if (!(op instanceof QryopSl))
+            return;
+
+        for (Qryop arg : op.args) {
+            if (!(arg instanceof QryopIl)) {
+                addListStats(arg, model, result);
+                continue;
+            }
+            if (arg instanceof QryopIlTerm)
+                continue;
+
+            String key = arg.toString();
+            if (result.containsKey(key))
+                continue;
+
+            CollectionStats.TermStats list = stats.getListStats(key);
+            if (list == null) {
+                InvList postings = arg.evaluate(model).invertedList;
+                list = new CollectionStats.TermStats(postings.df, postings.ctf);
+                stats.putListStats(key, list);
+            }
+            result.put(key, list);
+        }
+    }
+
+    /**
+     * Set the statistics of the derived inverted lists of the query that
+     * the current thread evaluates segment by segment.
+     * 
+     * @param lists
+     *            The statistics (see listStats), or null to clear them.
+     */
+    static void setListStats(Map<String, CollectionStats.TermStats> lists) {
+        if (lists == null)
+            listStats.remove();
+        else
+            listStats.set(lists);
+    }
+
+    /**
+     * @param key
+     *            The string version of a #SYN, #NEAR or #WINDOW operator.
+     * @return The whole-index statistics of its inverted list, or null if
+     *         they were not set for the current thread.
+     */
+    static CollectionStats.TermStats getListStats(String key) {
+        Map<String, CollectionStats.TermStats> lists = listStats.get();
+        return (lists == null) ? null : lists.get(key);
+    }
+
+    /**
+     * Evaluate a query one index segment at a time. The query tree is
+     * evaluated independently over each segment's postings, with docids
+     * rebased to the whole index, and the segment results are appended in
+     * docid order. Collection statistics still describe the whole index, so
+     * the result is the same as evaluating the whole index at once.
+     * 
+     * @param qString
+     *            A string containing a query.
+     * @param model
+     *            The retrieval model.
+     * @return The result of evaluating the query.
+     * @throws IOException
+     */
+    static QryResult evaluateBySegment(String qString, RetrievalModel model)
+            throws IOException {
+        QryResult result = new QryResult();
+
+        setListStats(listStats(parseQuery(qString, model), model));
+        try {
+            for (AtomicReaderContext leaf : READER.leaves()) {
+                setSegment(leaf);
+
+                // Operators keep evaluation state, so each segment gets
+                // its own query tree.
+
+                Qryop qTree = parseQuery(qString, model);
+                ScoreList segmentScores = evaluateTopK(qTree, model,
+                        outputLength).docScores;
+
+                result.docScores.addAll(segmentScores);
+            }
+        } finally {
+            setSegment(null);
+            setListStats(null);
+        }
+
+        return result;
+    }
+
+    /**
+     * Evaluates one query over all index segments in parallel. Each segment
+     * is a subtask that evaluates its own query tree and keeps only its top
+     * outputLength documents; the partial lists are then merged and the top
+     * outputLength documents of the merged list are kept. Collection
+     * statistics describe the whole index, so the merged list is the same
+     * as the top of a serial evaluation. The statistics of derived inverted
+     * lists are computed once, before the subtasks start (see listStats).
+     */
+    static class QueryTask extends RecursiveTask<QryResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private String qString;
+        private RetrievalModel model;
+        private boolean isRankedModel;
+        private Map<String, CollectionStats.TermStats> listStats;
+
+        QueryTask(String qString, RetrievalModel model, boolean isRankedModel) {
+            this.qString = qString;
+            this.model = model;
+            this.isRankedModel = isRankedModel;
+        }
+
+        protected QryResult compute() {
+            try {
+                this.listStats = QryEval.listStats(
+                        parseQuery(this.qString, this.model), this.model);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+            for (AtomicReaderContext leaf : READER.leaves())
+                tasks.add(new SegmentTask(this, leaf));
+
+            invokeAll(tasks);
+
+            QryResult result = new QryResult();
+            for (SegmentTask task : tasks)
+                result.docScores.addAll(task.join().docScores);
+
+            try {
+                sortResult(result, this.isRankedModel, outputLength);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates a query over one index segment and keeps its top
+     * outputLength documents.
+     */
+    static class SegmentTask extends RecursiveTask<QryResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private QueryTask query;
+        private AtomicReaderContext leaf;
+
+        SegmentTask(QueryTask query, AtomicReaderContext leaf) {
+            this.query = query;
+            this.leaf = leaf;
+        }
+
+        protected QryResult compute() {
+            setSegment(this.leaf);
+            setListStats(this.query.listStats);
+            try {
+                // Operators keep evaluation state, so each segment gets
+                // its own query tree.
+
+                Qryop qTree = parseQuery(this.query.qString, this.query.model);
+                QryResult result = evaluateTopK(qTree, this.query.model,
+                        outputLength);
+
+                sortResult(result, this.query.isRankedModel, outputLength);
+                return result;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                setSegment(null);
+                setListStats(null);
+            }
+        }
+    }
+
+    /**
+     * Evaluate a query tree when only its top k documents are needed. A
+     * flat BM25 #SUM of terms, or a flat Indri #AND or #WAND of terms, is
+     * evaluated with dynamic pruning (see the pruning parameter): its
+     * result then holds exactly the top k documents, with the same scores
+     * as exhaustive evaluation. Other queries are evaluated exhaustively.
+     * Flat queries may instead be evaluated term-at-a-time (see
+     * evaluateTaat), in which case the result holds every matching
+     * document.
+     * Unranked Boolean queries of #AND, #OR and inverted list operators are
+     * evaluated with bitsets (see BooleanBitsets).
+     * 
+     * @param qTree
+     *            A query tree.
+     * @param model
+     *            The retrieval model.
+     * @param k
+     *            The number of documents that are needed.
+     * @return The result of evaluating the query.
+     * @throws IOException
+     */
+    static QryResult evaluateTopK(Qryop qTree, RetrievalModel model, int k)
+            throws IOException {
+        if (!evaluation.equals("daat")) {
+            QryResult result = evaluateTaat(qTree, model);
+            if (result != null)
+                return result;
+        }
+
+        if (model instanceof RetrievalModelUnrankedBoolean) {
+            QryResult result = BooleanBitsets.evaluate(qTree, model);
+            if (result != null)
+                return result;
+        }
+
+        if (!pruning.equals("none") && model instanceof RetrievalModelBM25
+                && qTree instanceof QryopSlSum
+                && ((QryopSlSum) qTree).isFlat()) {
+            QryopSlSum sum = (QryopSlSum) qTree;
+            if (pruning.equals("maxscore"))
+                return sum.evaluateMaxScore((RetrievalModelBM25) model, k);
+            if (pruning.equals("bmw"))
+                return sum.evaluateBlockMaxWand((RetrievalModelBM25) model, k);
+            return sum.evaluateWand((RetrievalModelBM25) model, k);
+        }
+
+        if (!pruning.equals("none") && model instanceof RetrievalModelIndri) {
+            Qryop root = indriRoot(qTree);
+            RetrievalModelIndri indri = (RetrievalModelIndri) model;
+            boolean useBlocks = pruning.equals("bmw");
+
+            if (root instanceof QryopSlAnd && IndriTopK.isFlat(root.args))
+                return ((QryopSlAnd) root).evaluateIndriTopK(indri, k,
+                        useBlocks);
+            if (root instanceof QryopSlWand && IndriTopK.isFlat(root.args))
+                return ((QryopSlWand) root).evaluateIndriTopK(indri, k,
+                        useBlocks);
+        }
+
+        return evaluate(qTree, model);
+    }
+
+    /**
+     * Evaluate a query tree exhaustively. Indri operators exchange log
+     * probabilities, so the scores of an Indri query are exponentiated here,
+     * at the root. Callers that need the scores of a whole query must use
+     * this instead of Qryop.evaluate.
+     * 
+     * The tree is evaluated by its QueryPlan, compiled once per thread for
+     * each query, when every operator supports it; otherwise the operators
+     * evaluate themselves.
+     * 
+     * @param qTree
+     *            A query tree.
+     * @param model
+     *            The retrieval model.
+     * @return The result of evaluating the query.
+     * @throws IOException
+     */
+    static QryResult evaluate(Qryop qTree, RetrievalModel model)
+            throws IOException {
+        QryResult result = QueryPlan.evaluate(qTree, model);
+        if (result == null)
+            result = qTree.evaluate(model);
+
+        if (model instanceof RetrievalModelIndri)
+            result.docScores.exp();
+        return result;
+    }
+
+    /**
+     * Skip the default #AND around an Indri query: it has one argument, and
+     * log s * 1.0 == log s.
+     */
+    private static Qryop indriRoot(Qryop qTree) {
+        Qryop root = qTree;
+        while (root instanceof QryopSlAnd && root.args.size() == 1
+                && (root.args.get(0) instanceof QryopSlAnd
+                || root.args.get(0) instanceof QryopSlWand))
+            root = root.args.get(0);
+        return root;
+    }
+
+    /**
+     * Evaluate a flat query term-at-a-time (see the evaluation parameter): a
+     * BM25 #SUM, a Boolean #OR, or an Indri #AND or #WAND, of terms. Without
+     * an accumulator limit, the result is the same as document-at-a-time
+     * evaluation.
+     * 
+     * @param qTree
+     *            A query tree.
+     * @param model
+     *            The retrieval model.
+     * @return The result, or null if the query is not flat or the cost
+     *         model prefers document-at-a-time evaluation.
+     * @throws IOException
+     */
+    static QryResult evaluateTaat(Qryop qTree, RetrievalModel model)
+            throws IOException {
+        TaatEvaluator taat = TaatEvaluator.get(taatAccumulators, taatQuit,
+                evaluation.equals("auto"));
+
+        if (model instanceof RetrievalModelBM25 && qTree instanceof QryopSlSum
+                && TaatEvaluator.isFlat(qTree.args))
+            return taat.evaluateSum((QryopSlSum) qTree,
+                    (RetrievalModelBM25) model);
+
+        if ((model instanceof RetrievalModelUnrankedBoolean
+                || model instanceof RetrievalModelRankedBoolean)
+                && qTree instanceof QryopSlOr
+                && TaatEvaluator.isFlat(qTree.args))
+            return taat.evaluateOr((QryopSlOr) qTree, model);
+
+        if (model instanceof RetrievalModelIndri) {
+            Qryop root = indriRoot(qTree);
+            if (root instanceof QryopSlAnd && TaatEvaluator.isFlat(root.args))
+                return taat.evaluateIndri(root.args,
+                        ((QryopSlAnd) root).getExponents(),
+                        (RetrievalModelIndri) model);
+            if (root instanceof QryopSlWand && TaatEvaluator.isFlat(root.args))
+                return taat.evaluateIndri(root.args,
+                        ((QryopSlWand) root).getExponents(),
+                        (RetrievalModelIndri) model);
+        }
+
+        return null;
+    }
+
     /**
      * parseQuery converts a query string into a query tree.
      * 
@@ -776,10 +1415,10 @@ public class QryEval {
             throws IOException {
 
         System.out.println(queryName + ":  ");
-        if (result.docScores.scores.size() < 1) {
+        if (result.docScores.size() < 1) {
             System.out.println("\tNo results.");
         } else {
-            for (int i = 0; i < result.docScores.scores.size(); i++) {
+            for (int i = 0; i < result.docScores.size(); i++) {
                 System.out.println("\t" + i + ":  "
                         + getExternalDocid(result.docScores.getDocid(i)) + ", "
                         + result.docScores.getDocidScore(i));
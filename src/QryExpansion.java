@@ -143,8 +143,8 @@ public class QryExpansion {
         if (!hasInitialRankingFile) {
             // use original query to retrieve the top-ranked documents
             Qryop qTree = QryEval.parseQuery(pair[1], model);
-            QryResult result = qTree.evaluate(model);
-            QryEval.sortResult(result, isRankedModel);
+            QryResult result = QryEval.evaluateTopK(qTree, model, fbDocs);
+            QryEval.sortResult(result, isRankedModel, fbDocs);
 
             // pick top fbDocs
             ArrayList<RankedFile> list = new ArrayList<RankedFile>();            
@@ -171,12 +171,14 @@ public class QryExpansion {
         
         Map<String, Double> termScoreMap = new HashMap<String, Double>();
 
+        int bodyId = QryEval.dls.getFieldId("body");
+
         // loop over each document
         for (RankedFile file : topRankingFiles.get(pair[0])) {
             TermVector tv = new TermVector(file.docid, "body");
             double score = file.score;
-            double C = (double) QryEval.READER.getSumTotalTermFreq("body");
-            long doclen = QryEval.dls.getDocLength("body", file.docid);
+            double C = (double) QryEval.stats.sumTotalTermFreq("body");
+            long doclen = QryEval.dls.getDocLength(bodyId, file.docid);
             
             // loop over each term in this document
             // i == 0 indicates a stopword, skip that
@@ -246,6 +248,8 @@ public class QryExpansion {
             
             // read only top fbDocs files
             String line = null;
+            List<String[]> entries = new ArrayList<String[]>();
+            List<String> extIds = new ArrayList<String>();
             
             while ((line = br.readLine()) != null) {
                 String[] part = line.split(" ");
@@ -259,7 +263,18 @@ public class QryExpansion {
                 if (rank > fbDocs) // in case the input file is not sorted
                     continue;
                 
-                int docid = QryEval.getInternalDocid(part[2]);
+                entries.add(part);
+                extIds.add(part[2]);
+            }
+            
+            // resolve all the external ids at once
+            int[] docids = QryEval.getInternalDocids(extIds);
+            
+            for (int i = 0; i < entries.size(); i++) {
+                String[] part = entries.get(i);
+                int docid = docids[i];
+                if (docid < 0)
+                    throw new Exception("External id not found.");
                 double score = Double.parseDouble(part[4]);
                 
                 if (!topRankingFiles.containsKey(part[0])) {
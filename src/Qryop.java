@@ -20,6 +20,7 @@ public abstract class Qryop {
   protected class DaaTPtr {
     protected ScoreList scoreList;	// A qry arg's score list (if any)
     protected InvList invList;		// A qry arg's inverted list (if any)
+    protected PostingCursor cursor;	// A qry arg's posting cursor (if any)
     protected int nextDoc;		// The next document to examine
     protected int nextPos;      // The next position in current doc (just quick index)
   };
@@ -16,15 +16,34 @@ public abstract class QryopIl extends Qryop {
   /**
    *  Use the specified retrieval model to evaluate the query arguments.
    *  Define and return DaaT pointers that the query operator can use.
+   *  The arguments are not materialized; each DaaT pointer gets an
+   *  unpositioned posting cursor.
    *  @param r A retrieval model that controls how the operator behaves.
    *  @return void
    *  @throws IOException
    */
   public void allocDaaTPtrs (RetrievalModel r) throws IOException {
+    allocDaaTPtrs (r, true);
+  }
+
+  /**
+   *  Same as allocDaaTPtrs(r), but the caller says whether it will
+   *  read positions from the cursors.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param positions Whether positions will be read from the cursors.
+   *  @return void
+   *  @throws IOException
+   */
+  public void allocDaaTPtrs (RetrievalModel r, boolean positions) throws IOException {
 
     for (int i=0; i<this.args.size(); i++) {
+
+      if (! (this.args.get(i) instanceof QryopIl))
+	QryEval.fatalError ("Error:  Invalid argument in " + this.toString());
+
       DaaTPtr ptri = new DaaTPtr ();
-      ptri.invList = this.args.get(i).evaluate(r).invertedList;
+      ptri.invList = null;
+      ptri.cursor = ((QryopIl) this.args.get(i)).cursor(r, positions);
       ptri.scoreList = null;
       ptri.nextDoc = 0;
       ptri.nextPos = 0;
@@ -33,4 +52,31 @@ public abstract class QryopIl extends Qryop {
     }
   }
 
+  /**
+   *  Return a cursor over the inverted list that this operator
+   *  produces, with positions.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return An unpositioned posting cursor.
+   *  @throws IOException
+   */
+  public PostingCursor cursor (RetrievalModel r) throws IOException {
+    return cursor (r, true);
+  }
+
+  /**
+   *  Return a cursor over the inverted list that this operator
+   *  produces.  Callers that only need docids and tfs (e.g., #SCORE)
+   *  pass positions=false, which lets #TERM skip decoding positions;
+   *  proximity operators always ask for them.  By default the
+   *  operator is evaluated and the cursor walks its result; operators
+   *  that can stream their postings override this.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param positions Whether positions will be read from the cursor.
+   *  @return An unpositioned posting cursor.
+   *  @throws IOException
+   */
+  public PostingCursor cursor (RetrievalModel r, boolean positions) throws IOException {
+    return this.evaluate(r).invertedList.cursor();
+  }
+
 }
@@ -10,10 +10,9 @@
  */
 
 import java.io.IOException;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
 
 
 public class QryopIlNear extends QryopIl {
@@ -61,57 +60,54 @@ public class QryopIlNear extends QryopIl {
         
         if (this.daatPtrs.size() == 0)
             return result;
-        result.invertedList.field = new String (this.daatPtrs.get(0).invList.field);
+        result.invertedList.field = new String (this.daatPtrs.get(0).cursor.field);
         
         // in NEAR/n operator, the order of arguments matter, so let's start
         // from the first argument, and find other arugment in order.
         
-        DaaTPtr ptr0 = this.daatPtrs.get(0);
+        // find the documents that every list contains
+        PostingCursor[] cursors = new PostingCursor[this.daatPtrs.size()];
+        for (int j = 0; j < cursors.length; j++)
+            cursors[j] = this.daatPtrs.get(j).cursor;
+        Intersection docs = new Intersection(cursors);
         
-        // loop over the postings of the first inverted list
-        LOOPOVERFIRSTPOSTING:
-        for ( ; ptr0.nextDoc < ptr0.invList.postings.size(); ptr0.nextDoc++) {
-            int ptr0DocID = ptr0.invList.getDocid(ptr0.nextDoc);
+        // positions of the current document in each list
+        int[][] pos = new int[this.daatPtrs.size()][];
+        int[] tf = new int[this.daatPtrs.size()];
+        for (int j = 0; j < pos.length; j++)
+            pos[j] = new int[16];
+        
+        // loop over the documents that match all the lists
+        for (int docid = docs.nextDoc(); docid != PostingCursor.NO_MORE_DOCS;
+                docid = docs.nextDoc()) {
             
-            // loop over other postings to find the same document
-            for (int j = 1; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                
-                while (true) {
-                    if (ptrj.nextDoc >= ptrj.invList.postings.size())
-                        break LOOPOVERFIRSTPOSTING;     // no more docs can match
-                    
-                    if (ptrj.invList.getDocid (ptrj.nextDoc) > ptr0DocID)
-                        continue LOOPOVERFIRSTPOSTING;  // the ptr0docid can't match.
-                    
-                    if (ptrj.invList.getDocid (ptrj.nextDoc) == ptr0DocID)
-                        break;                          // match, go to next
-                    
-                    if (ptrj.invList.getDocid (ptrj.nextDoc) < ptr0DocID)
-                        ptrj.nextDoc++;                 // not yet at the right doc.
-                }
+            // read the positions of the matching document in every list
+            for (int j = 0; j < this.daatPtrs.size(); j++) {
+                PostingCursor cursorj = this.daatPtrs.get(j).cursor;
+                tf[j] = cursorj.freq();
+                pos[j] = cursorj.readPositions(pos[j]);
             }
             
             // reach here if all doc match, go for next stage
             int[] idx = new int[this.daatPtrs.size()]; // index for all files' position
-            Vector<Integer> resultPositions = new Vector<Integer>();
+            int[] resultPositions = new int[tf[0]];
+            int numPositions = 0;
             
             // loop over current doc's all positions
-            int length = ptr0.invList.getTf(ptr0.nextDoc);
+            int length = tf[0];
             LOOPOVERFIRSTPOSITIONS:
             for (; idx[0] < length; idx[0]++) {
-                int lastPos = ptr0.invList.getPos(ptr0.nextDoc, idx[0]);
+                int lastPos = pos[0][idx[0]];
                 
                 for (int j = 1; j < this.daatPtrs.size(); j++) {
-                    DaaTPtr ptrj = this.daatPtrs.get(j);
-                    int len = ptrj.invList.getTf(ptrj.nextDoc);
+                    int len = tf[j];
                     
                     while (true) {
                         if (idx[j] >= len)
                             break LOOPOVERFIRSTPOSITIONS; // no more match
                         
                         // get the position value of current index
-                        int thisPos = ptrj.invList.getPos(ptrj.nextDoc, idx[j]);
+                        int thisPos = pos[j][idx[j]];
                         
                         if (thisPos < lastPos) {
                             idx[j]++;  // later position should be larger
@@ -130,16 +126,16 @@ public class QryopIlNear extends QryopIl {
                 
                 // reach here if all positions match, add to temporary result
                 // Note: store the position of the last term
-                DaaTPtr ptrlast = this.daatPtrs.get(this.daatPtrs.size()-1);
-                resultPositions.add(ptrlast.invList.getPos(ptrlast.nextDoc, idx[this.daatPtrs.size()-1]));
+                int last = this.daatPtrs.size()-1;
+                resultPositions[numPositions++] = pos[last][idx[last]];
                 for (int i = 1; i < idx.length; i++)
                     idx[i]++;                
             }
             
             // add this doc to result
-            if (!resultPositions.isEmpty()) {
-                Collections.sort (resultPositions);
-                result.invertedList.appendPosting (ptr0DocID, resultPositions);
+            if (numPositions > 0) {
+                Arrays.sort (resultPositions, 0, numPositions);
+                result.invertedList.appendPosting (docid, resultPositions, numPositions);
             }
         }
         
@@ -160,7 +156,7 @@ public class QryopIlNear extends QryopIl {
         if (! (this.args.get(i) instanceof QryopIl))
             QryEval.fatalError ("Error: Invalid argument in " + this.toString());
         
-        if ((i>0) && (! ptrs.get(i).invList.field.equals (ptrs.get(0).invList.field)))
+        if ((i>0) && (! ptrs.get(i).cursor.field.equals (ptrs.get(0).cursor.field)))
             QryEval.fatalError ("Error: Arguments must be in the same field: " +
                    this.toString());
         }
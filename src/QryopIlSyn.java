@@ -13,6 +13,9 @@ import java.util.*;
 
 public class QryopIlSyn extends QryopIl {
 
+    // merges the arguments' lists during evaluation
+    private DocidHeap heap;
+
     /**
      * It is convenient for the constructor to accept a variable number of
      * arguments. Thus new QryopIlSyn (arg1, arg2, arg3, ...).
@@ -44,58 +47,91 @@ public class QryopIlSyn extends QryopIl {
      * @throws IOException
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
+        return evaluate(r, true);
+    }
+
+    /**
+     * Return a cursor over the merged list. When no positions are needed,
+     * the arguments are read without positions and only the tfs are summed.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param positions
+     *            Whether positions will be read from the cursor.
+     * @return An unpositioned posting cursor.
+     * @throws IOException
+     */
+    public PostingCursor cursor(RetrievalModel r, boolean positions)
+            throws IOException {
+        return evaluate(r, positions).invertedList.cursor();
+    }
+
+    /**
+     * Evaluates the query operator, with or without positions.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param needPositions
+     *            Whether the result list must have positions.
+     * @return The result of evaluating the query.
+     * @throws IOException
+     */
+    private QryResult evaluate(RetrievalModel r, boolean needPositions)
+            throws IOException {
 
         // Initialization
 
-        allocDaaTPtrs(r);
+        allocDaaTPtrs(r, needPositions);
         syntaxCheckArgResults(this.daatPtrs);
 
         QryResult result = new QryResult();
         result.invertedList.field = new String(
-                this.daatPtrs.get(0).invList.field);
+                this.daatPtrs.get(0).cursor.field);
 
         // Each pass of the loop adds 1 document to result until all of
-        // the inverted lists are depleted. When a list is depleted, it
-        // is removed from daatPtrs, so this loop runs until daatPtrs is empty.
+        // the inverted lists are depleted. A DocidHeap merges the lists,
+        // so the smallest docid is found without scanning every list, and
+        // a depleted list leaves the heap.
 
-        // This implementation is intended to be clear. A more efficient
-        // implementation would combine loops and use merge-sort.
+        this.heap = new DocidHeap(this.daatPtrs.size());
+        for (int i = 0; i < this.daatPtrs.size(); i++)
+            this.heap.add(i, this.daatPtrs.get(i).cursor.nextDoc());
 
-        while (this.daatPtrs.size() > 0) {
+        int[] positions = new int[16];
+
+        while (!this.heap.isEmpty()) {
 
             int nextDocid = getSmallestCurrentDocid();
 
             // Create a new posting that is the union of the posting lists
             // that match the nextDocid.
 
-            List<Integer> positions = new ArrayList<Integer>();
-
-            for (int i = 0; i < this.daatPtrs.size(); i++) {
-                DaaTPtr ptri = this.daatPtrs.get(i);
-
-                if (ptri.invList.getDocid(ptri.nextDoc) == nextDocid) {
-                    positions
-                            .addAll(ptri.invList.postings.get(ptri.nextDoc).positions);
-                    ptri.nextDoc++;
-                }
-            }
-
-            Collections.sort(positions);
-            result.invertedList.appendPosting(nextDocid, positions);
+            int length = 0;
 
-            // If a DaatPtr has reached the end of its list, remove it.
-            // The loop is backwards so that removing an arg does not
-            // interfere with iteration.
+            while (this.heap.topDocid() == nextDocid) {
+                PostingCursor cursori = this.daatPtrs.get(this.heap.topArg()).cursor;
+                int tf = cursori.freq();
 
-            for (int i = this.daatPtrs.size() - 1; i >= 0; i--) {
-                DaaTPtr ptri = this.daatPtrs.get(i);
+                if (needPositions) {
+                    if (length + tf > positions.length)
+                        positions = Arrays.copyOf(positions,
+                                Math.max(length + tf, positions.length << 1));
+                    for (int j = 0; j < tf; j++)
+                        positions[length++] = cursori.nextPosition();
+                } else
+                    length += tf;
 
-                if (ptri.nextDoc >= ptri.invList.postings.size()) {
-                    this.daatPtrs.remove(i);
-                }
+                this.heap.updateTop(cursori.nextDoc());
             }
+
+            if (needPositions) {
+                Arrays.sort(positions, 0, length);
+                result.invertedList.appendPosting(nextDocid, positions, length);
+            } else
+                result.invertedList.appendPosting(nextDocid, length);
         }
 
+        this.heap = null;
         freeDaaTPtrs();
 
         return result;
@@ -107,16 +143,7 @@ public class QryopIlSyn extends QryopIl {
      * @return The smallest internal document id.
      */
     public int getSmallestCurrentDocid() {
-
-        int nextDocid = Integer.MAX_VALUE;
-
-        for (int i = 0; i < this.daatPtrs.size(); i++) {
-            DaaTPtr ptri = this.daatPtrs.get(i);
-            if (nextDocid > ptri.invList.getDocid(ptri.nextDoc))
-                nextDocid = ptri.invList.getDocid(ptri.nextDoc);
-        }
-
-        return (nextDocid);
+        return this.heap.topDocid();
     }
 
     /**
@@ -135,8 +162,8 @@ public class QryopIlSyn extends QryopIl {
                 QryEval.fatalError("Error:  Invalid argument in "
                         + this.toString());
             else if ((i > 0)
-                    && (!ptrs.get(i).invList.field
-                            .equals(ptrs.get(0).invList.field)))
+                    && (!ptrs.get(i).cursor.field
+                            .equals(ptrs.get(0).cursor.field)))
                 QryEval.fatalError("Error:  Arguments must be in the same field:  "
                         + this.toString());
         }
@@ -10,6 +10,9 @@
 
 import java.io.*;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
 public class QryopIlTerm extends QryopIl {
 
     private String term;
@@ -63,10 +66,48 @@ public class QryopIlTerm extends QryopIl {
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
         QryResult result = new QryResult();
-        result.invertedList = new InvList(this.term, this.field);
+        if (QryEval.invListCache != null)
+            result.invertedList = QryEval.invListCache.get(this.term,
+                    this.field, true);
+        else
+            result.invertedList = new InvList(this.term, this.field);
         return result;
     }
 
+    /**
+     * Open a cursor that streams this term's postings from the index
+     * without copying them into memory. If the posting cache is enabled,
+     * the cursor walks the cached list instead.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param positions
+     *            Whether some ancestor operator will read positions. If
+     *            not, only docids and tfs are decoded.
+     * @return An unpositioned posting cursor.
+     * @throws IOException
+     */
+    public PostingCursor cursor(RetrievalModel r, boolean positions)
+            throws IOException {
+        if (QryEval.invListCache != null)
+            return QryEval.invListCache.cursor(this.term, this.field,
+                    positions);
+
+        return new PostingCursor.IndexCursor(this.term, this.field, positions);
+    }
+
+    /**
+     * Get the df and ctf of this term over the live documents of the whole
+     * index, without opening its postings.
+     * 
+     * @return The live statistics.
+     * @throws IOException
+     */
+    public CollectionStats.TermStats liveTermStats() throws IOException {
+        return QryEval.stats.liveTermStats(new Term(this.field, new BytesRef(
+                this.term)));
+    }
+
     /*
      * Return a string version of this query operator.
      * 
@@ -1,8 +1,7 @@
 import java.io.IOException;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
 
 public class QryopIlWindow extends QryopIl {
 
@@ -53,40 +52,38 @@ public class QryopIlWindow extends QryopIl {
         
         if (this.daatPtrs.size() == 0)
             return result;
-        result.invertedList.field = new String (this.daatPtrs.get(0).invList.field);
+        result.invertedList.field = new String (this.daatPtrs.get(0).cursor.field);
         
         // in WINDOW/n operator, the order of arguments doesn't matter, so let's
         // first find the same document and then apply the window
         
-        DaaTPtr ptr0 = this.daatPtrs.get(0);
+        // find the documents that every list contains
+        PostingCursor[] cursors = new PostingCursor[this.daatPtrs.size()];
+        for (int j = 0; j < cursors.length; j++)
+            cursors[j] = this.daatPtrs.get(j).cursor;
+        Intersection docs = new Intersection(cursors);
         
-        // loop over the postings of the first inverted list
-        LOOPOVERFIRSTPOSTING:
-        for ( ; ptr0.nextDoc < ptr0.invList.postings.size(); ptr0.nextDoc++) {
-            int ptr0DocID = ptr0.invList.getDocid(ptr0.nextDoc);
+        // positions of the current document in each list
+        int[][] pos = new int[this.daatPtrs.size()][];
+        int[] tf = new int[this.daatPtrs.size()];
+        for (int j = 0; j < pos.length; j++)
+            pos[j] = new int[16];
+        
+        // loop over the documents that match all the lists
+        for (int docid = docs.nextDoc(); docid != PostingCursor.NO_MORE_DOCS;
+                docid = docs.nextDoc()) {
             
-            // loop over other postings to find the same document
-            for (int j = 1; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                
-                while (true) {
-                    if (ptrj.nextDoc >= ptrj.invList.postings.size())
-                        break LOOPOVERFIRSTPOSTING;     // no more docs can match
-                    
-                    if (ptrj.invList.getDocid (ptrj.nextDoc) > ptr0DocID)
-                        continue LOOPOVERFIRSTPOSTING;  // the ptr0docid can't match.
-                    
-                    if (ptrj.invList.getDocid (ptrj.nextDoc) == ptr0DocID)
-                        break;                          // match, go to next
-                    
-                    if (ptrj.invList.getDocid (ptrj.nextDoc) < ptr0DocID)
-                        ptrj.nextDoc++;                 // not yet at the right doc.
-                }
+            // read the positions of the matching document in every list
+            for (int j = 0; j < this.daatPtrs.size(); j++) {
+                PostingCursor cursorj = this.daatPtrs.get(j).cursor;
+                tf[j] = cursorj.freq();
+                pos[j] = cursorj.readPositions(pos[j]);
             }
             
             // reach here if all doc match, go for next stage
             int[] idx = new int[this.daatPtrs.size()]; // index for all files' position
-            Vector<Integer> resultPositions = new Vector<Integer>();
+            int[] resultPositions = new int[tf[0]];
+            int numPositions = 0;
             
             int maxIdx = -1, minIdx = -1;            
             int maxPos = Integer.MIN_VALUE;
@@ -97,14 +94,13 @@ public class QryopIlWindow extends QryopIl {
             while (true) {
                 // find max and min positions
                 for (int j = 0; j < this.daatPtrs.size(); j++) {
-                    DaaTPtr ptrj = this.daatPtrs.get(j);
-                    int len = ptrj.invList.getTf(ptrj.nextDoc);
+                    int len = tf[j];
                     
                     if (idx[j] >= len)
                         break LOOPOVERPOSITIONS;  // no more match
                     
                     // get the position value of current index
-                    int thisPos = ptrj.invList.getPos(ptrj.nextDoc, idx[j]);
+                    int thisPos = pos[j][idx[j]];
                     
                     // check min
                     if (thisPos < minPos) {
@@ -125,10 +121,7 @@ public class QryopIlWindow extends QryopIl {
                     minPos = Integer.MAX_VALUE;
                 } else {
                     // add the max position in the result, not sure now
-                    DaaTPtr ptrMax = this.daatPtrs
-                            .get(maxIdx);
-                    resultPositions.add(ptrMax.invList.getPos(ptrMax.nextDoc,
-                            idx[maxIdx]));
+                    resultPositions[numPositions++] = pos[maxIdx][idx[maxIdx]];
                     // advance all the indexes and re-initialize max/min position
                     for (int i = 0; i < idx.length; i++)
                         idx[i]++;
@@ -138,9 +131,9 @@ public class QryopIlWindow extends QryopIl {
             }
             
             // add this doc to result
-            if (!resultPositions.isEmpty()) {
-                Collections.sort (resultPositions);
-                result.invertedList.appendPosting (ptr0DocID, resultPositions);
+            if (numPositions > 0) {
+                Arrays.sort (resultPositions, 0, numPositions);
+                result.invertedList.appendPosting (docid, resultPositions, numPositions);
             }
         }
         
@@ -165,8 +158,8 @@ public class QryopIlWindow extends QryopIl {
                         + this.toString());
 
             if ((i > 0)
-                    && (!ptrs.get(i).invList.field
-                            .equals(ptrs.get(0).invList.field)))
+                    && (!ptrs.get(i).cursor.field
+                            .equals(ptrs.get(0).cursor.field)))
                 QryEval.fatalError("Error: Arguments must be in the same field: "
                         + this.toString());
         }
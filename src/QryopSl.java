@@ -39,6 +39,20 @@ public abstract class QryopSl extends Qryop {
     }
   }
 
+  /**
+   *  Get argument i as a score list operator, wrapping it in a #SCORE
+   *  operator in place if it is not one, as allocDaaTPtrs does.
+   *  @param i The index of the argument.
+   *  @return The argument.
+   */
+  public QryopSl scoreArg (int i) {
+
+    if (! QryopSl.class.isInstance (this.args.get(i)))
+      this.args.set(i, new QryopSlScore(this.args.get(i)));
+
+    return (QryopSl) this.args.get(i);
+  }
+
   /*
    *  Calculate the default score for the specified document if it
    *  does not match the query operator.  This score is 0 for many
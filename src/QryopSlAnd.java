@@ -6,7 +6,7 @@
 
 import java.io.IOException;
 
-public class QryopSlAnd extends QryopSl {
+public class QryopSlAnd extends QryopSlCombine {
 
     /**
      * It is convenient for the constructor to accept a variable number of
@@ -34,7 +34,8 @@ public class QryopSlAnd extends QryopSl {
 
     /**
      * Evaluates the query operator, including any child operators and returns
-     * the result.
+     * the result. The documents are matched by a query plan (see QueryPlan)
+     * and scored by combine.
      * 
      * @param r
      *            A retrieval model that controls how the operator behaves.
@@ -43,244 +44,84 @@ public class QryopSlAnd extends QryopSl {
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
 
-        if (r instanceof RetrievalModelIndri)
-            return evaluateIndri((RetrievalModelIndri)r);
-
-        if (r instanceof RetrievalModelUnrankedBoolean)
-            return (evaluateBoolean(r));
-
-        if (r instanceof RetrievalModelRankedBoolean)
-            return (evaluateRankedBoolean(r));
+        if (r instanceof RetrievalModelIndri
+                || r instanceof RetrievalModelUnrankedBoolean
+                || r instanceof RetrievalModelRankedBoolean)
+            return QueryPlan.evaluate(this, r);
 
         return null;
     }
-    
-    public static final int INITIAL_VALUE = -1;
-    
+
     /**
-     * Evaluates the #and operator for Indri retrieval models, including any
-     * child operators and returns the result.
+     * Combine the scores of the arguments on a document. For Indri, the
+     * scores are log probabilities, so the product of s ^ q is the sum of
+     * q * log s. For ranked Boolean, every argument matches, and the score
+     * is the smallest score of the arguments.
      * 
      * @param r
      *            A retrieval model that controls how the operator behaves.
-     * @return The result of evaluating the query.
-     * @throws IOException
+     * @param scores
+     *            The score of each argument.
+     * @return The score of the document.
      */
-    public QryResult evaluateIndri(RetrievalModelIndri r) throws IOException {
-        // initialization
-        allocDaaTPtrs (r);
-        QryResult result = new QryResult ();
-        
-        // #and operator for the Indri 
-        int minID = 0;
-        double docScore = 0.0;
-        double q = 1.0 / (double)this.args.size();
-        
-        while (true) {
-            // initialize the minimum docID as -1
-            minID = INITIAL_VALUE;
-            docScore = 1.0;
-            
-            // find the scoreList with minimum current docID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                
-                // check if this scoreList has already empty
-                if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                    continue;
-                
-                int ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                
-                if (minID == INITIAL_VALUE)
-                    minID = ptrjID;                    
-                else {
-                    if (ptrjID < minID)
-                        minID = ptrjID;
-                }
-            }
-            
-            // all the scoreList has been scanned
-            if (minID == INITIAL_VALUE)
-                break;
-            
-            // accumulate the score over the documents with the same minID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                double s = 0.0; // score of current docment
-                
-                // if the score list not empty and current doc match minID
-                if (ptrj.nextDoc < ptrj.scoreList.scores.size()
-                        && ptrj.scoreList.getDocid(ptrj.nextDoc) == minID) {
-                    s = ptrj.scoreList.getDocidScore(ptrj.nextDoc++);
-                }
-                else {
-                    // find the default score
-                    s = ((QryopSl) this.args.get(j)).getDefaultScore(r, minID);
-                    // handle the case where default score is 0, this
-                    // could happen when an empty score list is created
-                    if (s == 0.0)
-                        continue; // discard this term
-                }
-                
-                docScore *= Math.pow(s, q);
+    public double combine(RetrievalModel r, double[] scores) {
+
+        if (r instanceof RetrievalModelIndri) {
+            double docScore = 0.0;
+            double q = 1.0 / (double) this.args.size();
+
+            for (int j = 0; j < this.args.size(); j++) {
+                // handle the case where default score is 0 (its log is
+                // -infinity), this could happen when an empty score list
+                // is created
+                if (scores[j] == Double.NEGATIVE_INFINITY)
+                    continue; // discard this term
+
+                docScore += q * scores[j];
             }
-            
-            // add the accumulated score to the result score list
-            result.docScores.add(minID, docScore);
+            return docScore;
+        }
+
+        if (r instanceof RetrievalModelRankedBoolean) {
+            double minScore = scores[0];
+            for (int j = 1; j < this.args.size(); j++)
+                minScore = Math.min(minScore, scores[j]);
+            return minScore;
         }
-        
-        freeDaaTPtrs();
-        return result;
+
+        return 1.0;
     }
 
     /**
-     * Evaluates the query operator for boolean retrieval models, including any
-     * child operators and returns the result.
+     * Evaluates the top k documents of the #and operator for Indri retrieval
+     * models with top-k pruning (see IndriTopK). Every argument must be a
+     * term.
      * 
      * @param r
      *            A retrieval model that controls how the operator behaves.
-     * @return The result of evaluating the query.
+     * @param k
+     *            The number of documents to return.
+     * @param useBlocks
+     *            Whether to use block-max summaries.
+     * @return The top k documents, with the scores of evaluate
+     *         exponentiated, as at the root of a query.
      * @throws IOException
      */
-    public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
-
-        // Initialization
-
-        allocDaaTPtrs(r);
-        QryResult result = new QryResult();
-
-        // Sort the arguments so that the shortest lists are first. This
-        // improves the efficiency of exact-match AND without changing
-        // the result.
-
-        for (int i = 0; i < (this.daatPtrs.size() - 1); i++) {
-            for (int j = i + 1; j < this.daatPtrs.size(); j++) {
-                if (this.daatPtrs.get(i).scoreList.scores.size() > this.daatPtrs
-                        .get(j).scoreList.scores.size()) {
-                    ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
-                    this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
-                    this.daatPtrs.get(j).scoreList = tmpScoreList;
-                }
-            }
-        }
-
-        // Exact-match AND requires that ALL scoreLists contain a
-        // document id. Use the first (shortest) list to control the
-        // search for matches.
-
-        // Named loops are a little ugly. However, they make it easy
-        // to terminate an outer loop from within an inner loop.
-        // Otherwise it is necessary to use flags, which is also ugly.
-        if (this.daatPtrs.size() == 0)
-            return result;
-
-        DaaTPtr ptr0 = this.daatPtrs.get(0);
-
-        EVALUATEDOCUMENTS:
-        for (; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc++) {
-
-            int ptr0Docid = ptr0.scoreList.getDocid(ptr0.nextDoc);
-            double docScore = 1.0;
-
-            // Do the other query arguments have the ptr0Docid?
-
-            for (int j = 1; j < this.daatPtrs.size(); j++) {
-
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-
-                while (true) {
-                    if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                        break EVALUATEDOCUMENTS; // No more docs can match
-                    else if (ptrj.scoreList.getDocid(ptrj.nextDoc) > ptr0Docid)
-                        continue EVALUATEDOCUMENTS; // The ptr0docid can't
-                                                    // match.
-                    else if (ptrj.scoreList.getDocid(ptrj.nextDoc) < ptr0Docid)
-                        ptrj.nextDoc++; // Not yet at the right doc.
-                    else
-                        break; // ptrj matches ptr0Docid
-                }
-            }
-
-            // The ptr0Docid matched all query arguments, so save it.
-
-            result.docScores.add(ptr0Docid, docScore);
-        }
-
-        freeDaaTPtrs();
-
-        return result;
+    public QryResult evaluateIndriTopK(RetrievalModelIndri r, int k,
+            boolean useBlocks) throws IOException {
+        return new IndriTopK(this.args, getExponents(), r, useBlocks)
+                .evaluate(k);
     }
 
-    public QryResult evaluateRankedBoolean(RetrievalModel r) throws IOException {
-
-        // Initialization
-
-        allocDaaTPtrs(r);
-        QryResult result = new QryResult();
-
-        // Sort the arguments so that the shortest lists are first. This
-        // improves the efficiency of exact-match AND without changing
-        // the result.
-
-        for (int i = 0; i < (this.daatPtrs.size() - 1); i++) {
-            for (int j = i + 1; j < this.daatPtrs.size(); j++) {
-                if (this.daatPtrs.get(i).scoreList.scores.size() > this.daatPtrs
-                        .get(j).scoreList.scores.size()) {
-                    ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
-                    this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
-                    this.daatPtrs.get(j).scoreList = tmpScoreList;
-                }
-            }
-        }
-
-        // Exact-match AND requires that ALL scoreLists contain a
-        // document id. Use the first (shortest) list to control the
-        // search for matches.
-
-        // Named loops are a little ugly. However, they make it easy
-        // to terminate an outer loop from within an inner loop.
-        // Otherwise it is necessary to use flags, which is also ugly.
-        if (this.daatPtrs.size() == 0)
-            return result;
-
-        DaaTPtr ptr0 = this.daatPtrs.get(0);
-
-        EVALUATEDOCUMENTS:
-        for (; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc++) {
-
-            int ptr0Docid = ptr0.scoreList.getDocid(ptr0.nextDoc);
-            double minScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
-
-            // Do the other query arguments have the ptr0Docid?
-            for (int j = 1; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-
-                while (true) {
-                    if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                        break EVALUATEDOCUMENTS; // No more docs can match
-
-                    if (ptrj.scoreList.getDocid(ptrj.nextDoc) > ptr0Docid)
-                        continue EVALUATEDOCUMENTS; // The ptr0docid can't
-                                                    // match.
-
-                    if (ptrj.scoreList.getDocid(ptrj.nextDoc) < ptr0Docid)
-                        ptrj.nextDoc++; // Not yet at the right doc.
-                    else {
-                        // ptrj matches ptr0Docid
-                        if (ptrj.scoreList.getDocidScore(ptrj.nextDoc) < minScore)
-                            minScore = ptrj.scoreList
-                                    .getDocidScore(ptrj.nextDoc);
-                        break;
-                    }
-                }
-            }
-
-            // The ptr0Docid matched all query arguments, so save it.
-            result.docScores.add(ptr0Docid, minScore);
-        }
-
-        freeDaaTPtrs();
-        return result;
+    /**
+     * @return The exponent of each argument's Indri score, 1 / n.
+     */
+    double[] getExponents() {
+        double q = 1.0 / (double) this.args.size();
+        double[] exponents = new double[this.args.size()];
+        for (int i = 0; i < exponents.length; i++)
+            exponents[i] = q;
+        return exponents;
     }
 
     /**
@@ -296,24 +137,8 @@ public class QryopSlAnd extends QryopSl {
      */
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-        if (r instanceof RetrievalModelIndri) {
-            double docScore = 1.0;
-            double s = 0.0;
-            double p = 1.0 / (double) this.args.size();
-            
-            for (int i = 0; i < this.args.size(); i++) {
-                s = ((QryopSl) this.args.get(i)).getDefaultScore(r, docid);
-                
-                // handle the case where default score is 0, this
-                // could happen when an empty score list is created
-                if (s == 0.0)
-                    continue; // discard this term
-
-                docScore *= Math.pow(s, p);
-            }
-            
-            return docScore;
-        }
+        if (r instanceof RetrievalModelIndri)
+            return combineDefaultScores(r, docid);
 
         return 0.0;
     }
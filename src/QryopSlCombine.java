@@ -0,0 +1,58 @@
+/**
+ *  QryopSlCombine is the superclass of the query operators that combine
+ *  the scores of their arguments: #SUM, #AND, #OR, #WAND and #WSUM.
+ *  Query plans (see QueryPlan) score a document by asking the operator
+ *  to combine its arguments' scores, so this is where each operator
+ *  defines its arithmetic.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+
+public abstract class QryopSlCombine extends QryopSl {
+
+    // a buffer for the default scores of the arguments
+    private double[] defaultScores = null;
+
+    /**
+     * Combine the scores of the arguments on one document into the score of
+     * the operator.
+     *
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param scores
+     *            The score of each argument, in argument order. An argument
+     *            that does not match the document has its default score for
+     *            Indri, and -infinity otherwise. -infinity scores are
+     *            discarded.
+     * @return The score of the document.
+     */
+    public abstract double combine(RetrievalModel r, double[] scores);
+
+    /**
+     * The default score of the operator: the combination of its arguments'
+     * default scores. The arguments must be score list operators (see
+     * scoreArg).
+     *
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param docid
+     *            The internal id of the document that needs a default score.
+     * @return The default score.
+     * @throws IOException
+     */
+    protected double combineDefaultScores(RetrievalModel r, long docid)
+            throws IOException {
+
+        if (this.defaultScores == null
+                || this.defaultScores.length != this.args.size())
+            this.defaultScores = new double[this.args.size()];
+
+        for (int i = 0; i < this.args.size(); i++)
+            this.defaultScores[i] = ((QryopSl) this.args.get(i))
+                    .getDefaultScore(r, docid);
+
+        return combine(r, this.defaultScores);
+    }
+}
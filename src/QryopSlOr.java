@@ -6,7 +6,7 @@ import java.io.IOException;
  * 
  *  @author Jiachen Li (AndrewID: jiachenl)
  */
-public class QryopSlOr extends QryopSl {
+public class QryopSlOr extends QryopSlCombine {
     
     /**
      *  It is convenient for the constructor to accept a variable number
@@ -38,148 +38,32 @@ public class QryopSlOr extends QryopSl {
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
 
-        if (r instanceof RetrievalModelUnrankedBoolean)
-            return (evaluateBoolean(r));
-        
-        if (r instanceof RetrievalModelRankedBoolean)
-            return (evaluateRankedBoolean(r));
+        if (r instanceof RetrievalModelUnrankedBoolean
+                || r instanceof RetrievalModelRankedBoolean)
+            return QueryPlan.evaluate(this, r);
             
         return null;
     }
     
     /**
-     *  Evaluates the query operator for boolean retrieval models,
-     *  including any child operators and returns the result.
+     *  Combine the scores of the arguments on a document.  OR returns a
+     *  document if at least one of the query arguments occurs in it;
+     *  unranked Boolean gives it 1.0, ranked Boolean the largest score of
+     *  the arguments that occur.
      *  @param r A retrieval model that controls how the operator behaves.
-     *  @return The result of evaluating the query.
-     *  @throws IOException
+     *  @param scores The score of each argument.
+     *  @return The score of the document.
      */
-    public static final int INITIAL_VALUE = -1;
-    
-    public QryResult evaluateBoolean (RetrievalModel r) throws IOException {
-        
-        //  Initialization
-        allocDaaTPtrs (r);
-        QryResult result = new QryResult ();
-        
-        //  OR returns a document if at least one of the query arguments 
-        //  occurs in the document
-        int currentID = INITIAL_VALUE;
-        int minID = 0/*, docNum = 0*/;
-        double docScore = 1.0;
-        
-        while (minID != INITIAL_VALUE) {
-            // initialize the minimum docID as -1
-            minID = INITIAL_VALUE;
-            
-            // find the scoreList with minimum current docID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                
-                // check if this scoreList has already empty
-                if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                    continue;
-                
-                int ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                
-                // check if this list has an added docID
-                if (ptrjID == currentID) {
-                    if (++ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                        continue;
-                    else
-                        ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                }
-                    
-                // find the minimum
-                if (minID == INITIAL_VALUE) {
-                    //docNum = j;
-                    minID = ptrjID;                    
-                } else {
-                    if (ptrjID < minID) {
-                        minID = ptrjID;
-                        //docNum = j;
-                    }
-                }
-            }
-            // check if finished
-            if (minID == INITIAL_VALUE)
-                break;
-            
-            // add the doc with minimum docID to result list
-            // DaaTPtr ptr = this.daatPtrs.get(docNum);
-            currentID = minID; //ptr.scoreList.getDocid(ptr.nextDoc++);
-            result.docScores.add(minID, docScore);   
-        }
+    public double combine (RetrievalModel r, double[] scores) {
 
-        freeDaaTPtrs();
-        return result;
-    }
-    
-    
-public QryResult evaluateRankedBoolean (RetrievalModel r) throws IOException {
-        
-        //  Initialization
-        allocDaaTPtrs (r);
-        QryResult result = new QryResult ();
-        
-        //  OR returns a document if at least one of the query arguments 
-        //  occurs in the document
-        int currentID = INITIAL_VALUE;
-        int minID = 0/*, docNum = 0*/;
-        double maxScore = 0;
-        
-        while (minID != INITIAL_VALUE) {
-            // initialize the minimum docID as -1
-            minID = INITIAL_VALUE;
-            
-            // find the scoreList with minimum current docID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                // check if this scoreList has already empty
-                if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                    continue;
-                
-                int ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                double ptrjScore = ptrj.scoreList.getDocidScore(ptrj.nextDoc);
-                
-                // check if this list has an added docID
-                if (ptrjID == currentID) {
-                    if (++ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                        continue;
-                    else {
-                        ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                        ptrjScore = ptrj.scoreList.getDocidScore(ptrj.nextDoc);
-                    }
-                }
-                
-                // find the minimum
-                if (minID == INITIAL_VALUE) {
-                    minID = ptrjID;
-                    //docNum = j;
-                    maxScore = ptrjScore;
-                } else {
-                    // find the doc with smallest ID but max Score
-                    if (ptrjID < minID) {
-                        minID = ptrjID;
-                        //docNum = j;
-                        maxScore = ptrjScore;
-                    }
-                    if (ptrjID == minID && ptrjScore > maxScore)
-                        maxScore = ptrjScore;
-                }
-            }
-            // check if finished
-            if (minID == INITIAL_VALUE)
-                break;
-            
-            // add the doc with minimum docID to result list
-            //DaaTPtr ptr = this.daatPtrs.get(docNum);
-            currentID = minID; //ptr.scoreList.getDocid(ptr.nextDoc++);
-            result.docScores.add(minID, maxScore);   
+        if (r instanceof RetrievalModelRankedBoolean) {
+            double maxScore = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < this.args.size(); j++)
+                maxScore = Math.max(maxScore, scores[j]);
+            return maxScore;
         }
 
-        freeDaaTPtrs();
-        return result;
+        return 1.0;
     }
     
     
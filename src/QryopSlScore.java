@@ -11,6 +11,8 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.AtomicReaderContext;
+
 public class QryopSlScore extends QryopSl {
 
     /**
@@ -56,180 +58,337 @@ public class QryopSlScore extends QryopSl {
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
 
+        // A #SCORE of an inverted list is evaluated by a query plan (see
+        // QueryPlan), which scores each posting with score.
+
+        if (args.get(0) instanceof QryopIl)
+            return QueryPlan.evaluate(this, r);
+
+        return args.get(0).evaluate(r);
+    }
+
+    /**
+     * Open a cursor on the query argument for a retrieval model, and prepare
+     * score and getDefaultScore for it.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @return An unpositioned cursor, or null if the argument does not
+     *         produce an inverted list.
+     * @throws IOException
+     */
+    PostingCursor open(RetrievalModel r) throws IOException {
         if (r instanceof RetrievalModelBM25)
-            return evaluateBM25((RetrievalModelBM25) r);
+            return openBM25((RetrievalModelBM25) r);
 
         if (r instanceof RetrievalModelIndri)
-            return evaulateIndri((RetrievalModelIndri) r);
+            return openIndri((RetrievalModelIndri) r);
 
-        if (r instanceof RetrievalModelUnrankedBoolean)
-            return (evaluateBoolean(r));
+        return openArgCursor(r);
+    }
 
+    /**
+     * The score of a posting of the argument, after open. Indri operators
+     * exchange log probabilities, so the Indri score is log p; the root of
+     * the query exponentiates it (see QryEval.evaluate).
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param docid
+     *            The internal id of the document.
+     * @param tf
+     *            The frequency of the argument in the document.
+     * @return The score.
+     */
+    double score(RetrievalModel r, int docid, int tf) {
+        if (r instanceof RetrievalModelBM25)
+            return scoreBM25(docid, tf);
+
+        if (r instanceof RetrievalModelIndri)
+            return Math.log(scoreIndri(docid, tf));
+
+        // Ranked Boolean, use tf as the score.
         if (r instanceof RetrievalModelRankedBoolean)
-            return (evaluateRankedBoolean(r));
+            return (double) tf;
+
+        // Unranked Boolean. All matching documents get a score of 1.0.
+        return 1.0;
+    }
+
+    /**
+     * Open a posting cursor on the query argument. The argument's inverted
+     * list is streamed, not copied into memory. Scoring only needs docids
+     * and tfs, so positions are not decoded.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @return An unpositioned cursor, or null if the argument does not
+     *         produce an inverted list.
+     * @throws IOException
+     */
+    private PostingCursor openArgCursor(RetrievalModel r) throws IOException {
+        if (args.get(0) instanceof QryopIl)
+            return ((QryopIl) args.get(0)).cursor(r, false);
 
         return null;
     }
 
-    
     /**
-     * Evaluate the #score operator for Indri retrieval models.
+     * When evaluation is restricted to one index segment, an inverted list
+     * built by #SYN, #NEAR or #WINDOW only covers that segment. Replace its
+     * df and ctf with the statistics of the whole index, so that scores do
+     * not depend on how the index is split into segments. The statistics
+     * are computed before evaluation is restricted (see QryEval.listStats).
+     * Term cursors already have whole-index statistics.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param postings
+     *            The cursor opened on the query argument.
+     * @throws IOException
+     */
+    private void useIndexStats(RetrievalModel r, PostingCursor postings)
+            throws IOException {
+        Qryop arg = args.get(0);
+        if (!QryEval.isSegmentScoped() || arg instanceof QryopIlTerm)
+            return;
+
+        CollectionStats.TermStats stats = QryEval.getListStats(arg.toString());
+        if (stats == null)
+            QryEval.fatalError("Error: No index statistics for " + arg);
+
+        postings.df = stats.df;
+        postings.ctf = (int) stats.ctf;
+    }
+
+    /**
+     * Prepare to score the argument with Indri one posting at a time. This
+     * lets an operator such as #AND move the cursor itself, e.g. to skip
+     * documents that cannot reach its top k. getDefaultScore can be used
+     * afterwards.
      * 
      * @param r
      *            A Indri retrieval model that controls how the operator behaves.
-     * @return The result of evaluating the query.
+     * @return An unpositioned cursor on the argument, or null if the
+     *         argument does not produce an inverted list.
      * @throws IOException
      */
-    public QryResult evaulateIndri(RetrievalModelIndri r) throws IOException {
-        
-        // initialization
-        QryResult result = args.get(0).evaluate(r);
+    PostingCursor openIndri(RetrievalModelIndri r) throws IOException {
+        PostingCursor postings = openArgCursor(r);
+        if (postings == null)
+            return null;
+
+        useIndexStats(r, postings);
+
         double mu = r.mu;
         double lambda = r.lambda;
         
-        this.field = result.invertedList.field; // field of this term
-        int ctf = result.invertedList.ctf; // collection term frequency
+        this.field = postings.field; // field of this term
+        int ctf = postings.ctf; // collection term frequency
         // the length of a field
-        //long lengthC = QryEval.READER.getSumTotalTermFreq(field);
+        //long lengthC = QryEval.stats.sumTotalTermFreq(field);
+
+        this.P_mle = ctf / (double) QryEval.stats.sumTotalTermFreq(this.field);
+
+        // p = lambda * (tf + mu * P_mle) / (doclen + mu) + (1 - lambda) * P_mle,
+        // with 1 / (doclen + mu) from the model's table. The default score
+        // is the same with tf = 0.
+        this.invLengths = r.getInvLengths(this.field);
+        this.lambda = lambda;
+        this.defaultCoef = lambda * mu * this.P_mle;
+        this.background = (1 - lambda) * this.P_mle;
+
+        // The default score is largest for the shortest document. A
+        // posting has tf <= ctf - df + 1 and doclen >= tf, and p grows
+        // with tf even when doclen grows with it.
+        this.maxDefaultScoreIndri = this.defaultCoef
+                * r.getMaxInvLength(this.field, false) + this.background;
+        int maxTf = Math.max(ctf - postings.df + 1, 1);
+        double maxInv = Math.min(r.getMaxInvLength(this.field, true),
+                1.0 / (maxTf + mu));
+        this.maxScoreIndri = (lambda * maxTf + this.defaultCoef) * maxInv
+                + this.background;
+
+        return postings;
+    }
 
-        this.P_mle = ctf / (double) QryEval.READER.getSumTotalTermFreq(this.field);
-        
-        // grade each document
-        for (int i = 0; i < result.invertedList.df; i++) {
-            // get docid, tf and doclen
-            int docid = result.invertedList.postings.get(i).docid;
-            int tf = result.invertedList.postings.get(i).tf;
-            long doclen = QryEval.dls.getDocLength(field, docid);
-            
-            double p = lambda * (tf + mu * this.P_mle) / (doclen + mu)
-                    + (1 - lambda) * this.P_mle;
-            
-            // add to result score list
-            result.docScores.add(docid, p);
-        }
-        
-        // The SCORE operator should not return a populated inverted list.
-        // If there is one, replace it with an empty inverted list.
-        if (result.invertedList.df > 0)
-            result.invertedList = new InvList();
+    /**
+     * The Indri score of a posting of the argument, after openIndri. It is a
+     * probability, not its log.
+     * 
+     * @param docid
+     *            The internal document id of the posting.
+     * @param tf
+     *            The term frequency of the posting.
+     * @return The score.
+     */
+    double scoreIndri(int docid, int tf) {
+        return (this.lambda * tf + this.defaultCoef) * this.invLengths[docid]
+                + this.background;
+    }
 
-        return result;
+    /**
+     * An upper bound of scoreIndri over all the argument's postings, after
+     * openIndri.
+     */
+    double maxScoreIndri() {
+        return this.maxScoreIndri;
+    }
+
+    /**
+     * An upper bound of getDefaultScore over all documents, after
+     * openIndri. It is 0 if the argument never occurs.
+     */
+    double maxDefaultScoreIndri() {
+        return this.maxDefaultScoreIndri;
     }
 
     /**
-     * Evaluate the #score operator for BM25 retrieval models.
+     * Get the block-max summaries of the argument's Indri scores, after
+     * openIndri. They are built from the whole index on first use.
      * 
      * @param r
-     *            A BM25 retrieval model that controls how the operator behaves.
-     * @return The result of evaluating the query.
+     *            A Indri retrieval model that controls how the operator behaves.
+     * @return The summaries, or null if the argument is not a term.
      * @throws IOException
      */
-    public QryResult evaluateBM25(RetrievalModelBM25 r) throws IOException {
-
-        // initialization
-        QryResult result = args.get(0).evaluate(r);
-
-        int N = QryEval.READER.numDocs(); // the total document number
-        int df = result.invertedList.df; // document frequency of this term
-        double k_1 = r.k_1;
-        double b = r.b;
-        String field = result.invertedList.field; // field of this term
-
-        // grade each document
-        double idf_w = Math.log((N - df + 0.5) / (df + 0.5));
-        double avg_doclen = QryEval.READER.getSumTotalTermFreq(field)
-                / (double) QryEval.READER.getDocCount(field);
-
-        for (int i = 0; i < df; i++) {
-            // get docid and tf
-            int docid = result.invertedList.postings.get(i).docid;
-            int tf = result.invertedList.postings.get(i).tf;
-
-            // calculate weights and score
-            long doclen = QryEval.dls.getDocLength(field, docid);
-            double tf_w = tf
-                    / (tf + k_1 * ((1 - b) + b * (doclen / avg_doclen)));
-            double score = idf_w * tf_w;
-
-            result.docScores.add(docid, score);
+    BlockMaxIndex.Blocks blockMaxIndri(RetrievalModelIndri r)
+            throws IOException {
+        Qryop arg = args.get(0);
+        if (!(arg instanceof QryopIlTerm))
+            return null;
+
+        String key = "Indri " + r.mu + " " + r.lambda + " " + arg.toString();
+        BlockMaxIndex.Blocks blocks = QryEval.blockMaxIndex.get(key);
+
+        if (blocks == null) {
+            blocks = BlockMaxIndex.build(openIndexCursor((QryopIlTerm) arg),
+                    new BlockMaxIndex.PostingScorer() {
+                        public double score(int docid, int tf) {
+                            return scoreIndri(docid, tf);
+                        }
+                    });
+            QryEval.blockMaxIndex.put(key, blocks);
         }
-
-        // The SCORE operator should not return a populated inverted list.
-        // If there is one, replace it with an empty inverted list.
-        if (result.invertedList.df > 0)
-            result.invertedList = new InvList();
-
-        return result;
+        return blocks;
     }
 
     /**
-     * Evaluate the #score operator for unranked boolean retrieval models.
+     * Prepare to score the argument with BM25 one posting at a time. This
+     * lets an operator such as #SUM move the cursor itself, e.g. to skip
+     * documents that cannot reach its top k.
      * 
      * @param r
-     *            A retrieval model that controls how the operator behaves.
-     * @return The result of evaluating the query.
+     *            A BM25 retrieval model that controls how the operator behaves.
+     * @return An unpositioned cursor on the argument, or null if the
+     *         argument does not produce an inverted list.
      * @throws IOException
      */
-    public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
+    PostingCursor openBM25(RetrievalModelBM25 r) throws IOException {
+        PostingCursor postings = openArgCursor(r);
+        if (postings == null)
+            return null;
 
-        // Evaluate the query argument.
+        useIndexStats(r, postings);
 
-        QryResult result = args.get(0).evaluate(r);
+        int N = QryEval.stats.numDocs(); // the total document number
+        int df = postings.df; // document frequency of this term
 
-        // Each pass of the loop computes a score for one document. Note:
-        // If the evaluate operation above returned a score list (which is
-        // very possible), this loop gets skipped.
+        // k_1 * ((1 - b) + b * (doclen / avg_doclen)) of each document
+        this.field = postings.field;
+        this.lengthNorms = r.getLengthNorms(this.field);
+        this.idf_w = Math.log((N - df + 0.5) / (df + 0.5));
 
-        for (int i = 0; i < result.invertedList.df; i++) {
-            // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY.
-            // Unranked Boolean. All matching documents get a score of 1.0.
-            result.docScores.add(result.invertedList.postings.get(i).docid,
-                    (float) 1.0);
-        }
+        // No document has more occurrences than ctf - df + 1, or a smaller
+        // normalization than the shortest document with the field.
+        int maxTf = Math.max(postings.ctf - df + 1, 1);
+        double minNorm = r.getMinLengthNorm(this.field);
+        this.maxScoreBM25 = Math.max(this.idf_w * (maxTf / (maxTf + minNorm)),
+                0.0);
 
-        // The SCORE operator should not return a populated inverted list.
-        // If there is one, replace it with an empty inverted list.
-        if (result.invertedList.df > 0)
-            result.invertedList = new InvList();
+        return postings;
+    }
 
-        return result;
+    /**
+     * The BM25 score of a posting of the argument, after openBM25.
+     * 
+     * @param docid
+     *            The internal document id of the posting.
+     * @param tf
+     *            The term frequency of the posting.
+     * @return The score.
+     */
+    double scoreBM25(int docid, int tf) {
+        double tf_w = tf / (tf + this.lengthNorms[docid]);
+        return this.idf_w * tf_w;
+    }
+
+    /**
+     * An upper bound of scoreBM25 over all the argument's postings, after
+     * openBM25. It is never negative.
+     */
+    double maxScoreBM25() {
+        return this.maxScoreBM25;
     }
 
     /**
-     * Evaluate the #score operator for ranked boolean retrieval models.
+     * Get the block-max summaries of the argument's BM25 scores, after
+     * openBM25. They are built from the whole index on first use, so they
+     * cover any segment that evaluation is restricted to.
      * 
      * @param r
-     *            A retrieval model that controls how the operator behaves.
-     * @return The result of evaluating the query.
+     *            A BM25 retrieval model that controls how the operator behaves.
+     * @return The summaries, or null if the argument is not a term.
      * @throws IOException
      */
-    public QryResult evaluateRankedBoolean(RetrievalModel r) throws IOException {
-
-        // Evaluate the query argument.
-
-        QryResult result = args.get(0).evaluate(r);
-
-        // Each pass of the loop computes a score for one document. Note:
-        // If the evaluate operation above returned a score list (which is
-        // very possible), this loop gets skipped.
-
-        for (int i = 0; i < result.invertedList.df; i++) {
-            // Ranked Boolean, use tf as the score.
-            result.docScores.add(result.invertedList.postings.get(i).docid,
-                    (double) result.invertedList.postings.get(i).tf);
+    BlockMaxIndex.Blocks blockMaxBM25(RetrievalModelBM25 r) throws IOException {
+        Qryop arg = args.get(0);
+        if (!(arg instanceof QryopIlTerm))
+            return null;
+
+        String key = "BM25 " + r.k_1 + " " + r.b + " " + arg.toString();
+        BlockMaxIndex.Blocks blocks = QryEval.blockMaxIndex.get(key);
+
+        if (blocks == null) {
+            blocks = BlockMaxIndex.build(openIndexCursor((QryopIlTerm) arg),
+                    new BlockMaxIndex.PostingScorer() {
+                        public double score(int docid, int tf) {
+                            return scoreBM25(docid, tf);
+                        }
+                    });
+            QryEval.blockMaxIndex.put(key, blocks);
         }
+        return blocks;
+    }
 
-        // The SCORE operator should not return a populated inverted list.
-        // If there is one, replace it with an empty inverted list.
-        if (result.invertedList.df > 0)
-            result.invertedList = new InvList();
-
-        return result;
+    /**
+     * Open a position-free cursor on a term over the whole index, even when
+     * evaluation is restricted to one segment.
+     */
+    private PostingCursor openIndexCursor(QryopIlTerm term) throws IOException {
+        List<AtomicReaderContext> scope = QryEval.isSegmentScoped() ? QryEval
+                .getSegments() : null;
+        QryEval.setSegment(null);
+        try {
+            return term.cursor(null, false);
+        } finally {
+            if (scope != null)
+                QryEval.setSegment(scope.get(0));
+        }
     }
-    
+
     // cache for calculating default score
     private double P_mle;  // used in Indri model
     private String field;  // field of inverted list
+    private double[] invLengths;  // 1 / (doclen + mu), by docid
+    private double defaultCoef;   // lambda * mu * P_mle
+    private double background;    // (1 - lambda) * P_mle
+    private double lambda;        // Indri lambda
+    private double maxScoreIndri;        // upper bound of the Indri score
+    private double maxDefaultScoreIndri; // upper bound of the default score
+    private double[] lengthNorms; // BM25 length normalization, by docid
+    private double idf_w;         // BM25 idf weight
+    private double maxScoreBM25;  // upper bound of the BM25 score
     
 
     /**
@@ -239,19 +398,12 @@ public class QryopSlScore extends QryopSl {
      * 
      * @param docid The internal id of the document that needs a default score.
      * 
-     * @return The default score.
+     * @return The default score; for Indri, its log.
      */
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-        if (r instanceof RetrievalModelIndri) {
-            double mu = ((RetrievalModelIndri) r).mu;
-            double lambda = ((RetrievalModelIndri) r).lambda;
-            long doclen = QryEval.dls.getDocLength(field, (int)docid);
-            
-            double p = lambda * mu * P_mle / (doclen + mu)
-                    + (1 - lambda) * P_mle;
-            
-            return p;
-        }
+        if (r instanceof RetrievalModelIndri)
+            return Math.log(this.defaultCoef * this.invLengths[(int) docid]
+                    + this.background);
 
         return 0.0;
     }
@@ -1,4 +1,6 @@
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 
 
 /**
@@ -7,7 +9,7 @@ import java.io.IOException;
  * @author Jiachen Li (AndrewID: jiachenl)
  */
 
-public class QryopSlSum extends QryopSl {
+public class QryopSlSum extends QryopSlCombine {
 
     /**
      *  It is convenient for the constructor to accept a variable number
@@ -30,11 +32,10 @@ public class QryopSlSum extends QryopSl {
         this.args.add(a);
     }
     
-    public static final int INITIAL_VALUE = -1;
-
     /**
      *  Evaluates the query operator, including any child operators and
-     *  returns the result.
+     *  returns the result.  The documents are matched by a query plan
+     *  (see QueryPlan) and scored by combine.
      *  @param r A retrieval model that controls how the operator behaves.
      *  @return The result of evaluating the query.
      *  @throws IOException
@@ -42,73 +43,407 @@ public class QryopSlSum extends QryopSl {
     @Override
     public QryResult evaluate(RetrievalModel r) throws IOException {
         if (r instanceof RetrievalModelBM25) {
-            return evaluateBM25((RetrievalModelBM25)r);
+            return QueryPlan.evaluate(this, r);
         }
 
         return null;
     }
     
-    private QryResult evaluateBM25(RetrievalModelBM25 r) throws IOException {
-        // initialization
-        allocDaaTPtrs (r);
-        QryResult result = new QryResult ();
-        
-        // user weigth
+    /**
+     *  @param r A BM25 retrieval model.
+     *  @return The user weight (k_3 + 1) * qtf / (k_3 + qtf) of a query
+     *          term.
+     */
+    static double userWeight(RetrievalModelBM25 r) {
         double k_3 = r.k_3;
         double qtf = 1.0; // suppose there is no duplicate of query term
-        double user_w = (k_3 + 1) * qtf / (k_3 + qtf);
-        
-        // #SUM operator - sum the score of each term for the same document
-        int minID = 0;
+        return (k_3 + 1) * qtf / (k_3 + qtf);
+    }
+
+    /**
+     *  Combine the BM25 scores of the arguments on a document: the sum of
+     *  the user-weighted scores of the arguments that occur in it.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @param scores The score of each argument.
+     *  @return The score of the document.
+     */
+    @Override
+    public double combine(RetrievalModel r, double[] scores) {
+        double user_w = userWeight((RetrievalModelBM25) r);
         double docScore = 0.0;
-        
+
+        for (int j = 0; j < this.args.size(); j++)
+            if (scores[j] != Double.NEGATIVE_INFINITY)
+                docScore += user_w * scores[j];
+
+        return docScore;
+    }
+
+    // State of top-k evaluation: the term scorers, their cursors, the
+    // upper bounds of their weighted scores, and the weighted scores of
+    // the current document.
+    private QryopSlScore[] scorers;
+    private PostingCursor[] cursors;
+    private double[] maxScores;
+    private double[] termScores;
+
+    // Bounds are summed in a different order than scores, so a bound is
+    // only trusted to be below the threshold by more than this relative
+    // margin; rounding then cannot prune a document that ties the k'th.
+    private static final double BOUND_SLACK = 1e-9;
+
+    /**
+     * @return true if every argument is a term, so the operator can be
+     *         evaluated with dynamic pruning.
+     */
+    public boolean isFlat() {
+        for (Qryop arg : this.args) {
+            if (arg instanceof QryopSlScore)
+                arg = arg.args.get(0);
+            if (!(arg instanceof QryopIlTerm))
+                return false;
+        }
+        return this.args.size() > 0;
+    }
+
+    /**
+     * Open a BM25 cursor on each argument, positioned on its first
+     * document, and compute the upper bound of each argument's score.
+     * The operator must be flat.
+     * 
+     * @return The user weight (k_3 + 1) * qtf / (k_3 + qtf).
+     */
+    private double openScorers(RetrievalModelBM25 r) throws IOException {
+        int n = this.args.size();
+        this.scorers = new QryopSlScore[n];
+        this.cursors = new PostingCursor[n];
+        this.maxScores = new double[n];
+        this.termScores = new double[n];
+
+        double user_w = userWeight(r);
+
+        for (int i = 0; i < n; i++) {
+            if (!(this.args.get(i) instanceof QryopSlScore))
+                this.args.set(i, new QryopSlScore(this.args.get(i)));
+
+            this.scorers[i] = (QryopSlScore) this.args.get(i);
+            this.cursors[i] = this.scorers[i].openBM25(r);
+            this.cursors[i].nextDoc();
+            this.maxScores[i] = user_w * this.scorers[i].maxScoreBM25();
+        }
+        return user_w;
+    }
+
+    /**
+     * Sum the scores of the arguments whose cursors are on docid, in
+     * argument order, exactly as combine does.
+     */
+    private double sumScores(int docid, double user_w) {
+        double docScore = 0.0;
+        for (int i = 0; i < this.cursors.length; i++)
+            if (this.cursors[i].docID() == docid)
+                docScore += user_w * this.termScores[i];
+        return docScore;
+    }
+
+    /**
+     * @return true if a document whose score is at most bound cannot enter
+     *         the top k.
+     */
+    private static boolean belowThreshold(double bound, double threshold) {
+        return bound + BOUND_SLACK * Math.max(1.0, Math.abs(threshold)) < threshold;
+    }
+
+    private void closeScorers() {
+        this.scorers = null;
+        this.cursors = null;
+        this.maxScores = null;
+        this.termScores = null;
+    }
+
+    /**
+     * Evaluate the top k documents with WAND. The arguments are kept
+     * sorted by their current document. The pivot is the first argument
+     * at which the upper bounds of the arguments up to it reach the
+     * score of the k'th best document so far; no document before the
+     * pivot's document can enter the top k, so the arguments before the
+     * pivot skip to it. The operator must be flat.
+     * 
+     * @param r
+     *            A BM25 retrieval model that controls how the operator behaves.
+     * @param k
+     *            The number of documents to return.
+     * @return The top k documents, with the same scores as evaluate.
+     * @throws IOException
+     */
+    public QryResult evaluateWand(RetrievalModelBM25 r, int k)
+            throws IOException {
+        double user_w = openScorers(r);
+        int n = this.cursors.length;
+        TopKCollector collector = new TopKCollector(k);
+
+        // argument indexes, sorted by current document
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        sortByDocid(order);
+
+        while (true) {
+            int pivot = findPivot(order, collector.threshold());
+            if (pivot < 0)
+                break;
+
+            scoreOrSkipToPivot(order, pivot, collector, user_w);
+            sortByDocid(order);
+        }
+
+        closeScorers();
+
+        QryResult result = new QryResult();
+        result.docScores = collector.topDocs();
+        return result;
+    }
+
+    /**
+     * Find the WAND pivot: the first argument, in document order, at which
+     * the upper bounds of the arguments up to it reach the threshold.
+     * 
+     * @return The position of the pivot in order, or -1 if no remaining
+     *         document can enter the top k.
+     */
+    private int findPivot(int[] order, double threshold) {
+        double bound = 0.0;
+        for (int p = 0; p < order.length; p++) {
+            if (this.cursors[order[p]].docID() == PostingCursor.NO_MORE_DOCS)
+                break;
+            bound += this.maxScores[order[p]];
+            if (!belowThreshold(bound, threshold))
+                return p;
+        }
+        return -1;
+    }
+
+    /**
+     * If every argument before the pivot is on the pivot document, score
+     * the document and move past it; otherwise move the arguments before
+     * the pivot up to the pivot document.
+     */
+    private void scoreOrSkipToPivot(int[] order, int pivot,
+            TopKCollector collector, double user_w) throws IOException {
+        int n = order.length;
+        int pivotDoc = this.cursors[order[pivot]].docID();
+
+        if (this.cursors[order[0]].docID() == pivotDoc) {
+            for (int p = 0; p < n
+                    && this.cursors[order[p]].docID() == pivotDoc; p++) {
+                PostingCursor cursor = this.cursors[order[p]];
+                this.termScores[order[p]] = this.scorers[order[p]].scoreBM25(
+                        pivotDoc, cursor.freq());
+            }
+            collector.collect(pivotDoc, sumScores(pivotDoc, user_w));
+
+            for (int p = 0; p < n
+                    && this.cursors[order[p]].docID() == pivotDoc; p++)
+                this.cursors[order[p]].nextDoc();
+        } else {
+            for (int p = 0; p < pivot; p++)
+                if (this.cursors[order[p]].docID() < pivotDoc)
+                    this.cursors[order[p]].advance(pivotDoc);
+        }
+    }
+
+    /**
+     * Evaluate the top k documents with Block-Max WAND. A pivot is found
+     * as in WAND, with global bounds. Then the pivot document is bounded
+     * again with the block-max summaries of the blocks that contain it
+     * (see BlockMaxIndex). If that bound is below the threshold, no
+     * document up to the end of the shortest of those blocks can enter the
+     * top k, and the arguments skip past it. The operator must be flat.
+     * 
+     * @param r
+     *            A BM25 retrieval model that controls how the operator behaves.
+     * @param k
+     *            The number of documents to return.
+     * @return The top k documents, with the same scores as evaluate.
+     * @throws IOException
+     */
+    public QryResult evaluateBlockMaxWand(RetrievalModelBM25 r, int k)
+            throws IOException {
+        double user_w = openScorers(r);
+        int n = this.cursors.length;
+        TopKCollector collector = new TopKCollector(k);
+
+        // the block summaries of each argument and its current block
+        BlockMaxIndex.Blocks[] blocks = new BlockMaxIndex.Blocks[n];
+        int[] block = new int[n];
+        for (int i = 0; i < n; i++)
+            blocks[i] = this.scorers[i].blockMaxBM25(r);
+
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        sortByDocid(order);
+
         while (true) {
-            // initialize the minimum docID as -1
-            minID = INITIAL_VALUE;
-            docScore = 0.0;
-            
-            // find the scoreList with minimum current docID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                
-                // check if this scoreList has already empty
-                if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                    continue;
-                
-                int ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                
-                if (minID == INITIAL_VALUE)
-                    minID = ptrjID;                    
-                else {
-                    if (ptrjID < minID)
-                        minID = ptrjID;
+            double threshold = collector.threshold();
+            int pivot = findPivot(order, threshold);
+            if (pivot < 0)
+                break;
+
+            // include every argument that is on the pivot document
+            int pivotDoc = this.cursors[order[pivot]].docID();
+            while (pivot + 1 < n
+                    && this.cursors[order[pivot + 1]].docID() == pivotDoc)
+                pivot++;
+
+            // the block-max bound of the pivot document, and the first
+            // document after the blocks it was computed from
+            double bound = 0.0;
+            int next = (pivot + 1 < n) ? this.cursors[order[pivot + 1]].docID()
+                    : PostingCursor.NO_MORE_DOCS;
+            for (int p = 0; p <= pivot; p++) {
+                int i = order[p];
+                block[i] = blocks[i].findBlock(block[i], pivotDoc);
+                if (block[i] < blocks[i].size()) {
+                    bound += user_w
+                            * Math.max(blocks[i].getMaxScore(block[i]), 0.0);
+                    next = Math.min(next, blocks[i].getLastDocid(block[i]) + 1);
                 }
             }
-            
-            // all the scoreList has been scanned
-            if (minID == INITIAL_VALUE)
+
+            if (belowThreshold(bound, threshold)) {
+                for (int p = 0; p <= pivot; p++)
+                    if (this.cursors[order[p]].docID() < next)
+                        this.cursors[order[p]].advance(next);
+            } else
+                scoreOrSkipToPivot(order, pivot, collector, user_w);
+
+            sortByDocid(order);
+        }
+
+        closeScorers();
+
+        QryResult result = new QryResult();
+        result.docScores = collector.topDocs();
+        return result;
+    }
+
+    /**
+     * Sort argument indexes by the current document of their cursors, with
+     * an insertion sort; queries are short and the order changes little.
+     */
+    private void sortByDocid(int[] order) {
+        for (int i = 1; i < order.length; i++) {
+            int arg = order[i];
+            int docid = this.cursors[arg].docID();
+            int j = i - 1;
+            while (j >= 0 && this.cursors[order[j]].docID() > docid) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = arg;
+        }
+    }
+
+    /**
+     * Evaluate the top k documents with MaxScore. The arguments are sorted
+     * by upper bound. The arguments with the smallest bounds, whose bounds
+     * sum to less than the score of the k'th best document so far, are
+     * non-essential: a document that only they contain cannot enter the
+     * top k. Candidates come from the essential arguments, and the
+     * non-essential ones are only advanced to a candidate while it can
+     * still reach the top k. The operator must be flat.
+     * 
+     * @param r
+     *            A BM25 retrieval model that controls how the operator behaves.
+     * @param k
+     *            The number of documents to return.
+     * @return The top k documents, with the same scores as evaluate.
+     * @throws IOException
+     */
+    public QryResult evaluateMaxScore(RetrievalModelBM25 r, int k)
+            throws IOException {
+        double user_w = openScorers(r);
+        int n = this.cursors.length;
+        TopKCollector collector = new TopKCollector(k);
+
+        // argument indexes, sorted by upper bound, and the running sums of
+        // their bounds
+        Integer[] byBound = new Integer[n];
+        for (int i = 0; i < n; i++)
+            byBound[i] = i;
+        Arrays.sort(byBound, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(maxScores[a], maxScores[b]);
+            }
+        });
+
+        int[] order = new int[n];
+        double[] boundSums = new double[n];
+        for (int p = 0; p < n; p++) {
+            order[p] = byBound[p];
+            boundSums[p] = ((p > 0) ? boundSums[p - 1] : 0.0)
+                    + this.maxScores[order[p]];
+        }
+
+        while (true) {
+            double threshold = collector.threshold();
+
+            // the first essential argument
+            int first = 0;
+            while (first < n && belowThreshold(boundSums[first], threshold))
+                first++;
+            if (first == n)
+                break;
+
+            // the next candidate is the smallest document of the essential
+            // arguments
+            int docid = PostingCursor.NO_MORE_DOCS;
+            for (int p = first; p < n; p++)
+                docid = Math.min(docid, this.cursors[order[p]].docID());
+            if (docid == PostingCursor.NO_MORE_DOCS)
                 break;
-            
-            // sum the score over the documents with the same minID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                
-                // check if this scoreList has already empty
-                if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                    continue;
-                
-                int ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                
-                if (ptrjID == minID) 
-                    docScore += user_w * ptrj.scoreList.getDocidScore(ptrj.nextDoc++);                
+
+            // the bound of the candidate: the scores of the essential
+            // arguments and the bounds of the non-essential ones
+            double bound = (first > 0) ? boundSums[first - 1] : 0.0;
+            for (int p = first; p < n; p++) {
+                PostingCursor cursor = this.cursors[order[p]];
+                if (cursor.docID() == docid) {
+                    this.termScores[order[p]] = this.scorers[order[p]]
+                            .scoreBM25(docid, cursor.freq());
+                    bound += user_w * this.termScores[order[p]];
+                }
             }
-            
-            // add the accumulated score to the result score list
-            result.docScores.add(minID, docScore);
+
+            // replace the non-essential bounds by scores, largest first
+            int p = first - 1;
+            for (; p >= 0 && !belowThreshold(bound, threshold); p--) {
+                PostingCursor cursor = this.cursors[order[p]];
+                bound -= this.maxScores[order[p]];
+                if (cursor.docID() < docid)
+                    cursor.advance(docid);
+                if (cursor.docID() == docid) {
+                    this.termScores[order[p]] = this.scorers[order[p]]
+                            .scoreBM25(docid, cursor.freq());
+                    bound += user_w * this.termScores[order[p]];
+                }
+            }
+
+            // every argument is on or past the candidate
+            if (p < 0)
+                collector.collect(docid, sumScores(docid, user_w));
+
+            for (p = first; p < n; p++)
+                if (this.cursors[order[p]].docID() == docid)
+                    this.cursors[order[p]].nextDoc();
         }
-        
-        freeDaaTPtrs();
-        return result;        
+
+        closeScorers();
+
+        QryResult result = new QryResult();
+        result.docScores = collector.topDocs();
+        return result;
     }
 
     /**
@@ -2,9 +2,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 
 
-public class QryopSlWand extends QryopSl {
+public class QryopSlWand extends QryopSlCombine {
     
     private ArrayList<Double> weights = null;
+    
+    // the weights over their sum, computed on first use
+    private double[] exponents = null;
 
     public QryopSlWand() {
         weights = new ArrayList<Double>();
@@ -32,6 +35,7 @@ public class QryopSlWand extends QryopSl {
     @Override
     public void addWeight(Double w) {
         this.weights.add(w);
+        this.exponents = null;
     }
 
     /**
@@ -45,86 +49,85 @@ public class QryopSlWand extends QryopSl {
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
         if (r instanceof RetrievalModelIndri)
-            return evaluateIndri((RetrievalModelIndri)r);
+            return QueryPlan.evaluate(this, r);
         
         return null;
     }
     
-    private static final int INITIAL_VALUE = -1;
+    /**
+     * Combine the log scores of the arguments on a document for Indri: the
+     * product of s ^ (w / wsum) is the sum of (w / wsum) * log s.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param scores
+     *            The score of each argument.
+     * @return The score of the document.
+     */
+    @Override
+    public double combine(RetrievalModel r, double[] scores) {
+        // weights over their sum, with parameter verification
+        double[] exponents = getExponents();
+        double docScore = 0.0;
+
+        for (int j = 0; j < this.args.size(); j++) {
+            // handle the case where default score is 0 (its log is
+            // -infinity), this could happen when an empty score list is
+            // created
+            if (scores[j] == Double.NEGATIVE_INFINITY)
+                continue; // discard this term
+
+            if (exponents[j] != 0.0) // s ^ 0 == 1
+                docScore += exponents[j] * scores[j];
+        }
+
+        return docScore;
+    }
     
-    public QryResult evaluateIndri(RetrievalModelIndri r) throws IOException {
+    /**
+     * Evaluates the top k documents of the #wand operator for Indri
+     * retrieval models with top-k pruning (see IndriTopK). Every argument
+     * must be a term.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param k
+     *            The number of documents to return.
+     * @param useBlocks
+     *            Whether to use block-max summaries.
+     * @return The top k documents, with the scores of evaluate
+     *         exponentiated, as at the root of a query.
+     * @throws IOException
+     */
+    public QryResult evaluateIndriTopK(RetrievalModelIndri r, int k,
+            boolean useBlocks) throws IOException {
+        return new IndriTopK(this.args, getExponents(), r, useBlocks)
+                .evaluate(k);
+    }
+
+    /**
+     * @return The exponent of each argument's Indri score, its weight over
+     *         the sum of the weights. They are computed once; the caller
+     *         must not modify them.
+     */
+    double[] getExponents() {
+        if (this.exponents != null)
+            return this.exponents;
+
         // parameter verification
         if (this.args.size() != weights.size())
             QryEval.fatalError("WAND: parameters are invalid!");
-        
-        // initialization
-        allocDaaTPtrs (r);
-        QryResult result = new QryResult ();
-        
-        // #wand operator for the Indri 
-        int minID = 0;
-        double docScore = 0.0;
+
         double wsum = 0.0;
         for (double w : weights)
             wsum += w;
-        
-        while (true) {
-            // initialize the minimum docID as -1
-            minID = INITIAL_VALUE;
-            docScore = 1.0;
-            
-            // find the scoreList with minimum current docID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                
-                // check if this scoreList has already empty
-                if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                    continue;
-                
-                int ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                
-                if (minID == INITIAL_VALUE)
-                    minID = ptrjID;                    
-                else {
-                    if (ptrjID < minID)
-                        minID = ptrjID;
-                }
-            }
-            
-            // all the scoreList has been scanned
-            if (minID == INITIAL_VALUE)
-                break;
-            
-            // accumulate the score over the documents with the same minID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                double s = 0.0; // score of current docment
-                
-                // if the score list not empty and current doc match minID
-                if (ptrj.nextDoc < ptrj.scoreList.scores.size()
-                        && ptrj.scoreList.getDocid(ptrj.nextDoc) == minID) {
-                    s = ptrj.scoreList.getDocidScore(ptrj.nextDoc++);
-                }
-                else {
-                    // find the default score
-                    s = ((QryopSl) this.args.get(j)).getDefaultScore(r, minID);
-                    // handle the case where default score is 0, this
-                    // could happen when an empty score list is created
-                    if (s == 0.0)
-                        continue; // discard this term
-                }
-
-                docScore *= Math.pow(s, (weights.get(j) / wsum));
-            }
-            
-            // add the accumulated score to the result score list
-            result.docScores.add(minID, docScore);
-        }
-        
-        freeDaaTPtrs();
-        return result;
+
+        double[] exponents = new double[this.args.size()];
+        for (int i = 0; i < exponents.length; i++)
+            exponents[i] = weights.get(i) / wsum;
+        return (this.exponents = exponents);
     }
-    
+
     /**
      * Calculate the default score for #wand operator.
      *  
@@ -139,26 +142,8 @@ public class QryopSlWand extends QryopSl {
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
         
-        if (r instanceof RetrievalModelIndri) {
-            double docScore = 1.0;
-            double s = 0.0;
-            double wsum = 0.0;
-            for (double w : weights)
-                wsum += w;
-            
-            for (int i = 0; i < this.args.size(); i++) {
-                s = ((QryopSl) this.args.get(i)).getDefaultScore(r, docid);
-                
-                // handle the case where default score is 0, this
-                // could happen when an empty score list is created
-                if (s == 0.0)
-                    continue; // discard this term
-                
-                docScore *= Math.pow(s, (weights.get(i) / wsum));
-            }
-            
-            return docScore;
-        }
+        if (r instanceof RetrievalModelIndri)
+            return combineDefaultScores(r, docid);
 
         return 0.0;
     }
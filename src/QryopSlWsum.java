@@ -2,9 +2,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 
 
-public class QryopSlWsum extends QryopSl {
+public class QryopSlWsum extends QryopSlCombine {
 
     private ArrayList<Double> weights = null;
+
+    // the logs of the weights over their sum, computed on first use, and
+    // a buffer for the terms of a log-sum-exp
+    private double[] logWeights = null;
+    private double[] terms = null;
     
     public QryopSlWsum() {
         weights = new ArrayList<Double>();
@@ -32,6 +37,7 @@ public class QryopSlWsum extends QryopSl {
     @Override
     public void addWeight(Double w) {
         this.weights.add(w);
+        this.logWeights = null;
     }
 
     /**
@@ -45,85 +51,40 @@ public class QryopSlWsum extends QryopSl {
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
         if (r instanceof RetrievalModelIndri)
-            return evaluateIndri((RetrievalModelIndri)r);
+            return QueryPlan.evaluate(this, r);
         
         return null;
     }
     
-    private static final int INITIAL_VALUE = -1;
+    /**
+     * Combine the log scores of the arguments on a document for Indri: the
+     * sum of (w / wsum) * s is the log-sum-exp of log (w / wsum) + log s.
+     * 
+     * @param r
+     *            A retrieval model that controls how the operator behaves.
+     * @param scores
+     *            The score of each argument.
+     * @return The score of the document.
+     */
+    @Override
+    public double combine(RetrievalModel r, double[] scores) {
+        // log of each weight over the sum, with parameter verification
+        double[] logWeights = getLogWeights();
+        double[] terms = this.terms;
+        int numTerms = 0;
 
-    private QryResult evaluateIndri(RetrievalModelIndri r) throws IOException {
-        // parameter verification
-        if (this.args.size() != weights.size())
-            QryEval.fatalError("WSUM: parameters are invalid!");
-        
-        // initialization
-        allocDaaTPtrs (r);
-        QryResult result = new QryResult ();
-        
-        // #wsnd operator for the Indri 
-        int minID = 0;
-        double docScore = 0.0;
-        double wsum = 0.0;
-        for (double w : weights)
-            wsum += w;
-        
-        while (true) {
-            // initialize the minimum docID as -1
-            minID = INITIAL_VALUE;
-            docScore = 0.0;
-            
-            // find the scoreList with minimum current docID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                
-                // check if this scoreList has already empty
-                if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                    continue;
-                
-                int ptrjID = ptrj.scoreList.getDocid(ptrj.nextDoc);
-                
-                if (minID == INITIAL_VALUE)
-                    minID = ptrjID;                    
-                else {
-                    if (ptrjID < minID)
-                        minID = ptrjID;
-                }
-            }
-            
-            // all the scoreList has been scanned
-            if (minID == INITIAL_VALUE)
-                break;
-            
-            // accumulate the score over the documents with the same minID
-            for (int j = 0; j < this.daatPtrs.size(); j++) {
-                DaaTPtr ptrj = this.daatPtrs.get(j);
-                double s = 0.0; // score of current docment
-                
-                // if the score list not empty and current doc match minID
-                if (ptrj.nextDoc < ptrj.scoreList.scores.size()
-                        && ptrj.scoreList.getDocid(ptrj.nextDoc) == minID) {
-                    s = ptrj.scoreList.getDocidScore(ptrj.nextDoc++);
-                }
-                else {
-                    // find the default score
-                    s = ((QryopSl) this.args.get(j)).getDefaultScore(r, minID);
-                    // handle the case where default score is 0, this
-                    // could happen when an empty score list is created
-                    // may not affect WSUM, but do so...
-                    if (s == 0.0)
-                        continue; // discard this term
-                }
-                
-                docScore += (weights.get(j) / wsum) * s;
-            }
-            
-            // add the accumulated score to the result score list
-            result.docScores.add(minID, docScore);
+        for (int j = 0; j < this.args.size(); j++) {
+            // handle the case where default score is 0 (its log is
+            // -infinity), this could happen when an empty score list is
+            // created
+            // may not affect WSUM, but do so...
+            if (scores[j] == Double.NEGATIVE_INFINITY)
+                continue; // discard this term
+
+            terms[numTerms++] = logWeights[j] + scores[j];
         }
-        
-        freeDaaTPtrs();
-        return result;
+
+        return logSumExp(terms, numTerms);
     }
     
     /**
@@ -140,31 +101,55 @@ public class QryopSlWsum extends QryopSl {
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
         
-        if (r instanceof RetrievalModelIndri) {
-            double docScore = 0.0;
-            double s = 0.0;
-            double wsum = 0.0;
-            for (double w : weights)
-                wsum += w;
-            
-            for (int i = 0; i < this.args.size(); i++) {
-                s = ((QryopSl) this.args.get(i)).getDefaultScore(r, docid);
-                
-                // handle the case where default score is 0, this
-                // could happen when an empty score list is created
-                // may not affect WSUM, but do so...
-                if (s == 0.0)
-                    continue; // discard this term
-                
-                docScore += (weights.get(i) / wsum) * s;
-            }
-            
-            return docScore;
-        }
+        if (r instanceof RetrievalModelIndri)
+            return combineDefaultScores(r, docid);
 
         return 0.0;
     }
 
+    /**
+     * @return The log of each weight over the sum of the weights. They are
+     *         computed once; the caller must not modify them.
+     */
+    double[] getLogWeights() {
+        if (this.logWeights != null)
+            return this.logWeights;
+
+        // parameter verification
+        if (this.args.size() != weights.size())
+            QryEval.fatalError("WSUM: parameters are invalid!");
+
+        double wsum = 0.0;
+        for (double w : weights)
+            wsum += w;
+
+        double[] logWeights = new double[this.args.size()];
+        for (int i = 0; i < logWeights.length; i++)
+            logWeights[i] = Math.log(weights.get(i) / wsum);
+        this.terms = new double[logWeights.length];
+        return (this.logWeights = logWeights);
+    }
+
+    /**
+     * Compute log (exp(x[0]) + ... + exp(x[n-1])) stably: the largest x[i]
+     * is factored out, so no exp overflows or underflows to 0 for every
+     * term.
+     * 
+     * @return The log of the sum, or -infinity if the sum is empty.
+     */
+    static double logSumExp(double[] x, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++)
+            max = Math.max(max, x[i]);
+        if (max == Double.NEGATIVE_INFINITY)
+            return max; // every term is 0
+
+        double sum = 0.0;
+        for (int i = 0; i < n; i++)
+            sum += Math.exp(x[i] - max);
+        return max + Math.log(sum);
+    }
+
     @Override
     public String toString() {
         StringBuilder strbuf = new StringBuilder("#WSUM( ");
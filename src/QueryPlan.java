@@ -0,0 +1,466 @@
+/**
+ *  QueryPlan is a query tree compiled for one retrieval model.  Each
+ *  operator is lowered to a node that finds its documents: a leaf reads
+ *  the posting cursor of a #SCORE, a union merges its children's
+ *  docids with a heap, and a conjunction leapfrogs them.  The nodes are
+ *  document-at-a-time iterators that the root pulls one document at a
+ *  time, so no operator materializes a score list.  Scores are not
+ *  computed by the nodes: a leaf asks its QryopSlScore (score), and a
+ *  union or conjunction asks its operator to combine its children's
+ *  scores (QryopSlCombine.combine), so each operator's arithmetic is defined
+ *  in one place.
+ *
+ *  All the state that nodes need (heaps, buffers) is allocated when the
+ *  plan is compiled, so scoring a document allocates nothing.  A plan
+ *  is re-executable: execute re-opens every node and reuses its state,
+ *  e.g. over the next index segment.  Plans are cached per thread by
+ *  query string and model (see get), so a query is compiled once per
+ *  thread however many times it is evaluated.  A plan is not
+ *  thread-safe.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QueryPlan {
+
+    private static final int NO_MORE_DOCS = PostingCursor.NO_MORE_DOCS;
+
+    // the number of plans cached by each thread
+    private static final int MAX_CACHED_PLANS = 32;
+
+    // query string -> plan, least recently used first, for each thread
+    private static final ThreadLocal<Map<String, QueryPlan>> plans = new ThreadLocal<Map<String, QueryPlan>>() {
+        protected Map<String, QueryPlan> initialValue() {
+            return new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, QueryPlan> eldest) {
+                    return size() > MAX_CACHED_PLANS;
+                }
+            };
+        }
+    };
+
+    /**
+     * A node. After open, a node is on its first document; next and advance
+     * move it forward, and score scores the current document.
+     */
+    private static abstract class Node {
+
+        /**
+         * Start a new execution. The node's children are already open.
+         */
+        abstract void open() throws IOException;
+
+        /**
+         * End an execution, releasing what open acquired.
+         */
+        void close() {
+        }
+
+        /**
+         * @return The current document, or NO_MORE_DOCS.
+         */
+        abstract int docID();
+
+        /**
+         * Move to the next document.
+         */
+        abstract void next() throws IOException;
+
+        /**
+         * Move to the first document at or after target. Nothing happens if
+         * the node is already there.
+         */
+        abstract void advance(int target) throws IOException;
+
+        /**
+         * @return The score of the current document.
+         */
+        abstract double score() throws IOException;
+    }
+
+    /**
+     * A #SCORE of an inverted list operator.
+     */
+    private static final class Leaf extends Node {
+        private QryopSlScore scorer;
+        private RetrievalModel r;
+        private PostingCursor cursor;
+        private int doc;
+
+        Leaf(QryopSlScore scorer, RetrievalModel r) {
+            this.scorer = scorer;
+            this.r = r;
+        }
+
+        void open() throws IOException {
+            this.cursor = this.scorer.open(this.r);
+            this.doc = this.cursor.nextDoc();
+        }
+
+        void close() {
+            this.cursor = null;
+        }
+
+        int docID() {
+            return this.doc;
+        }
+
+        void next() throws IOException {
+            this.doc = this.cursor.nextDoc();
+        }
+
+        void advance(int target) throws IOException {
+            if (this.doc < target)
+                this.doc = this.cursor.advance(target);
+        }
+
+        double score() throws IOException {
+            return this.scorer.score(this.r, this.doc, this.cursor.freq());
+        }
+    }
+
+    /**
+     * A node that matches the documents of any child: BM25 #SUM, Boolean
+     * #OR, and Indri #AND, #WAND and #WSUM. For Indri, the children that
+     * do not match a document contribute their default scores.
+     */
+    private static final class Union extends Node {
+        private QryopSlCombine op;
+        private RetrievalModel r;
+        private boolean useDefaults;
+        private Node[] children;
+
+        private DocidHeap heap;
+        private int doc;
+
+        // the children on the current document, in child order, once they
+        // are taken off the heap
+        private int[] matched;
+        private int numMatched;
+        private boolean collected;
+
+        // the children's scores on the current document
+        private double[] scores;
+
+        Union(QryopSlCombine op, RetrievalModel r, Node[] children) {
+            this.op = op;
+            this.r = r;
+            this.useDefaults = r instanceof RetrievalModelIndri;
+            this.children = children;
+            this.heap = new DocidHeap(children.length);
+            this.matched = new int[children.length];
+            this.scores = new double[children.length];
+        }
+
+        void open() {
+            this.heap.clear();
+            for (int i = 0; i < this.children.length; i++)
+                this.heap.add(i, this.children[i].docID());
+            this.collected = false;
+            this.doc = this.heap.topDocid();
+        }
+
+        int docID() {
+            return this.doc;
+        }
+
+        /**
+         * Take the children on the current document off the heap. They come
+         * off in child order.
+         */
+        private void collect() {
+            if (this.collected)
+                return;
+            this.numMatched = 0;
+            while (!this.heap.isEmpty() && this.heap.topDocid() == this.doc) {
+                this.matched[this.numMatched++] = this.heap.topArg();
+                this.heap.pop();
+            }
+            this.collected = true;
+        }
+
+        void next() throws IOException {
+            collect();
+            for (int p = 0; p < this.numMatched; p++) {
+                Node child = this.children[this.matched[p]];
+                child.next();
+                this.heap.add(this.matched[p], child.docID());
+            }
+            this.collected = false;
+            this.doc = this.heap.topDocid();
+        }
+
+        void advance(int target) throws IOException {
+            if (this.doc >= target)
+                return;
+
+            if (this.collected) {
+                for (int p = 0; p < this.numMatched; p++)
+                    this.heap.add(this.matched[p],
+                            this.children[this.matched[p]].docID());
+                this.collected = false;
+            }
+
+            while (!this.heap.isEmpty() && this.heap.topDocid() < target) {
+                Node child = this.children[this.heap.topArg()];
+                child.advance(target);
+                this.heap.updateTop(child.docID());
+            }
+            this.doc = this.heap.topDocid();
+        }
+
+        double score() throws IOException {
+            collect();
+
+            int p = 0;
+            for (int j = 0; j < this.children.length; j++) {
+                if (p < this.numMatched && this.matched[p] == j) {
+                    this.scores[j] = this.children[j].score();
+                    p++;
+                } else if (this.useDefaults)
+                    this.scores[j] = ((QryopSl) this.op.args.get(j))
+                            .getDefaultScore(this.r, this.doc);
+                else
+                    this.scores[j] = Double.NEGATIVE_INFINITY;
+            }
+            return this.op.combine(this.r, this.scores);
+        }
+    }
+
+    /**
+     * A Boolean #AND: the documents of every child. The children leapfrog to
+     * the largest docid seen.
+     */
+    private static final class Conjunction extends Node {
+        private QryopSlCombine op;
+        private RetrievalModel r;
+        private Node[] children;
+        private double[] scores;
+        private int doc;
+
+        Conjunction(QryopSlCombine op, RetrievalModel r, Node[] children) {
+            this.op = op;
+            this.r = r;
+            this.children = children;
+            this.scores = new double[children.length];
+        }
+
+        void open() throws IOException {
+            this.doc = (this.children.length > 0) ? align(this.children[0]
+                    .docID()) : NO_MORE_DOCS;
+        }
+
+        int docID() {
+            return this.doc;
+        }
+
+        /**
+         * Move every child to the first document at or after target that all
+         * of them contain.
+         */
+        private int align(int target) throws IOException {
+            int n = this.children.length;
+            int matched = 0;
+
+            for (int i = 0; matched < n; i = (i + 1 == n) ? 0 : i + 1) {
+                if (target == NO_MORE_DOCS)
+                    return NO_MORE_DOCS;
+
+                Node child = this.children[i];
+                child.advance(target);
+                int d = child.docID();
+                if (d > target) {
+                    target = d;
+                    matched = 1;
+                } else
+                    matched++;
+            }
+            return target;
+        }
+
+        void next() throws IOException {
+            if (this.doc == NO_MORE_DOCS)
+                return;
+            this.children[0].next();
+            this.doc = align(this.children[0].docID());
+        }
+
+        void advance(int target) throws IOException {
+            if (this.doc < target)
+                this.doc = align(target);
+        }
+
+        double score() throws IOException {
+            for (int j = 0; j < this.children.length; j++)
+                this.scores[j] = this.children[j].score();
+            return this.op.combine(this.r, this.scores);
+        }
+    }
+
+    private RetrievalModel model;
+    private Node root;
+    private Node[] program; // every node, children before parents
+
+    private QueryPlan(RetrievalModel model, Node root, Node[] program) {
+        this.model = model;
+        this.root = root;
+        this.program = program;
+    }
+
+    /**
+     * Get the plan of a query tree from the current thread's cache,
+     * compiling it if the thread has no plan for the query string and model.
+     * A cached plan may have been compiled from another tree of the same
+     * query, e.g. one parsed for another index segment.
+     *
+     * @param qTree
+     *            A query tree.
+     * @param r
+     *            The retrieval model.
+     * @return The plan, or null if the tree has an operator that the model
+     *         does not support in plans.
+     */
+    public static QueryPlan get(Qryop qTree, RetrievalModel r) {
+        Map<String, QueryPlan> cache = plans.get();
+        String key = qTree.toString();
+
+        QueryPlan plan = cache.get(key);
+        if (plan == null || plan.model != r) {
+            plan = compile(qTree, r);
+            if (plan == null)
+                return null;
+            cache.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Evaluate a query tree with its plan (see get).
+     *
+     * @param qTree
+     *            A query tree.
+     * @param r
+     *            The retrieval model.
+     * @return The result, in docid order, or null if the tree cannot be
+     *         compiled. Indri scores are log probabilities.
+     * @throws IOException
+     */
+    public static QryResult evaluate(Qryop qTree, RetrievalModel r)
+            throws IOException {
+        QueryPlan plan = get(qTree, r);
+        if (plan == null)
+            return null;
+
+        QryResult result = new QryResult();
+        plan.execute(result.docScores);
+        return result;
+    }
+
+    /**
+     * Compile a query tree. Arguments that are not score list operators are
+     * wrapped in #SCORE operators in place, as allocDaaTPtrs does.
+     *
+     * @param qTree
+     *            A query tree.
+     * @param r
+     *            The retrieval model.
+     * @return The plan, or null if the tree has an operator that the model
+     *         does not support in plans.
+     */
+    public static QueryPlan compile(Qryop qTree, RetrievalModel r) {
+        if (!(qTree instanceof QryopSl))
+            return null;
+
+        List<Node> program = new ArrayList<Node>();
+        Node root = lower((QryopSl) qTree, r, program);
+        if (root == null)
+            return null;
+        return new QueryPlan(r, root, program.toArray(new Node[program.size()]));
+    }
+
+    /**
+     * Lower an operator and its arguments to nodes, appending them to the
+     * program after their children.
+     *
+     * @return The operator's node, or null if it is not supported.
+     */
+    private static Node lower(QryopSl op, RetrievalModel r, List<Node> program) {
+        boolean bm25 = r instanceof RetrievalModelBM25;
+        boolean indri = r instanceof RetrievalModelIndri;
+        boolean bool = r instanceof RetrievalModelUnrankedBoolean
+                || r instanceof RetrievalModelRankedBoolean;
+
+        if (!(bm25 || indri || bool))
+            return null;
+
+        Node node;
+
+        if (op instanceof QryopSlScore) {
+            if (!(op.args.get(0) instanceof QryopIl))
+                return null;
+            node = new Leaf((QryopSlScore) op, r);
+        } else {
+            boolean union = (op instanceof QryopSlSum && bm25)
+                    || (op instanceof QryopSlOr && bool)
+                    || ((op instanceof QryopSlAnd || op instanceof QryopSlWand
+                            || op instanceof QryopSlWsum) && indri);
+            boolean conjunction = op instanceof QryopSlAnd && bool;
+
+            if (!union && !conjunction)
+                return null;
+
+            // check the weights now, not when the first document is scored
+            if (op instanceof QryopSlWand)
+                ((QryopSlWand) op).getExponents();
+            if (op instanceof QryopSlWsum)
+                ((QryopSlWsum) op).getLogWeights();
+
+            Node[] children = new Node[op.args.size()];
+            for (int i = 0; i < children.length; i++)
+                if ((children[i] = lower(op.scoreArg(i), r, program)) == null)
+                    return null;
+
+            QryopSlCombine combine = (QryopSlCombine) op;
+            node = union ? new Union(combine, r, children) : new Conjunction(
+                    combine, r, children);
+        }
+
+        program.add(node);
+        return node;
+    }
+
+    /**
+     * Execute the plan. It may be executed again, e.g. over another index
+     * segment.
+     *
+     * @param result
+     *            The list to fill, in docid order. It is reset first, so its
+     *            arrays are reused. Indri scores are log probabilities.
+     * @throws IOException
+     */
+    public void execute(ScoreList result) throws IOException {
+        result.reset();
+
+        for (Node node : this.program)
+            node.open();
+
+        Node root = this.root;
+        for (int docid = root.docID(); docid != NO_MORE_DOCS; docid = root
+                .docID()) {
+            result.add(docid, root.score());
+            root.next();
+        }
+
+        for (Node node : this.program)
+            node.close();
+    }
+}
@@ -1,3 +1,4 @@
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -13,6 +14,14 @@ public class RetrievalModelBM25 extends RetrievalModel {
     public double b = 0.0;
     public double k_3 = 0.0;
 
+    // Per-field tables of the BM25 length normalization
+    // k_1 * ((1 - b) + b * (doclen / avg_doclen)), indexed by docid. They
+    // are built on first use and dropped when k_1 or b changes.
+    private Map<String, double[]> lengthNorms = new HashMap<String, double[]>();
+    private Map<String, Double> minLengthNorms = new HashMap<String, Double>();
+    private double normK_1 = Double.NaN;
+    private double normB = Double.NaN;
+
     /**
      * Constructor for RetrievalModelBM25
      * 
@@ -79,6 +88,7 @@ public class RetrievalModelBM25 extends RetrievalModel {
                             + "=" + value);
             return false;
         }
+        clearLengthNorms();
         return true;
     }
 
@@ -101,7 +111,68 @@ public class RetrievalModelBM25 extends RetrievalModel {
                             + "=" + value);
             return false;
         }
+        clearLengthNorms();
         return true;
     }
 
+    /**
+     * Get the length normalization k_1 * ((1 - b) + b * (doclen /
+     * avg_doclen)) of every document for a field, indexed by docid. The
+     * table is computed once per field and parameter setting; the caller
+     * must not modify it.
+     * 
+     * @param field
+     *            The field whose document lengths are normalized.
+     * @return The normalization table.
+     */
+    public synchronized double[] getLengthNorms(String field) {
+        if (this.normK_1 != this.k_1 || this.normB != this.b)
+            clearLengthNorms();
+
+        double[] norms = this.lengthNorms.get(field);
+        if (norms != null)
+            return norms;
+
+        double avg_doclen = QryEval.stats.sumTotalTermFreq(field)
+                / (double) QryEval.stats.docCount(field);
+        int fieldId = QryEval.dls.getFieldId(field);
+
+        norms = new double[QryEval.READER.maxDoc()];
+        double minNorm = Double.POSITIVE_INFINITY;
+        for (int docid = 0; docid < norms.length; docid++) {
+            long doclen = QryEval.dls.getDocLength(fieldId, docid);
+            norms[docid] = k_1 * ((1 - b) + b * (doclen / avg_doclen));
+            if (doclen > 0)
+                minNorm = Math.min(minNorm, norms[docid]);
+        }
+
+        this.lengthNorms.put(field, norms);
+        this.minLengthNorms.put(field, minNorm);
+        return norms;
+    }
+
+    /**
+     * Get the smallest length normalization of a document that has the
+     * field, i.e., of any document that can contain a term of the field.
+     * It bounds the term scores used by dynamic pruning.
+     * 
+     * @param field
+     *            The field whose document lengths are normalized.
+     * @return The smallest normalization, or infinity if no document has
+     *         the field.
+     */
+    public synchronized double getMinLengthNorm(String field) {
+        getLengthNorms(field);
+        return this.minLengthNorms.get(field);
+    }
+
+    /**
+     * Drop the normalization tables, e.g. because k_1 or b changed.
+     */
+    private synchronized void clearLengthNorms() {
+        this.lengthNorms.clear();
+        this.minLengthNorms.clear();
+        this.normK_1 = this.k_1;
+        this.normB = this.b;
+    }
 }
@@ -1,3 +1,4 @@
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -11,6 +12,14 @@ public class RetrievalModelIndri extends RetrievalModel {
     // parameters
     public double mu = 0.0;
     public double lambda = 0.0;
+
+    // Per-field tables of 1 / (doclen + mu), indexed by docid. They are
+    // built on first use and dropped when mu changes.
+    private Map<String, double[]> invLengths = new HashMap<String, double[]>();
+    // Per field: the largest value of its table, over all documents and
+    // over the documents that have the field
+    private Map<String, double[]> maxInvLengths = new HashMap<String, double[]>();
+    private double tableMu = Double.NaN;
     
     /**
      * Constructor for RetrievalModelIndri
@@ -43,13 +52,31 @@ public class RetrievalModelIndri extends RetrievalModel {
         }
     }
 
-    /* (non-Javadoc)
-     * @see RetrievalModel#setParameter(java.lang.String, double)
+    /**
+     * Set parameters (i.e., mu, lambda) for retrieval model Indri.
+     * 
+     * @param parameterName
+     *            name of the parameters, e.g. Indri:mu, Indri:lambda
+     * @param value
+     *            value of parameter to set
      */
     @Override
     public boolean setParameter(String parameterName, double value) {
-        // TODO Auto-generated method stub
-        return false;
+        if (parameterName.equals("Indri:mu") && value >= 0.0) {
+            mu = value;
+        } else if (parameterName.equals("Indri:lambda") && value <= 1.0
+                && value >= 0.0) {
+            lambda = value;
+        } else {
+            System.err
+                    .println("Error: Unknown parameter name or wrong parameter value "
+                            + "for retrieval model Indri: "
+                            + parameterName
+                            + "=" + value);
+            return false;
+        }
+        clearInvLengths();
+        return true;
     }
 
     /* (non-Javadoc)
@@ -57,8 +84,67 @@ public class RetrievalModelIndri extends RetrievalModel {
      */
     @Override
     public boolean setParameter(String parameterName, String value) {
-        // TODO Auto-generated method stub
-        return false;
+        return setParameter(parameterName, Double.parseDouble(value));
     }
 
+    /**
+     * Get 1 / (doclen + mu) of every document for a field, indexed by
+     * docid. With it, both the match score and the default score of a
+     * #SCORE operator are one multiply-add per document. The table is
+     * computed once per field and value of mu; the caller must not modify
+     * it.
+     * 
+     * @param field
+     *            The field whose document lengths are used.
+     * @return The table.
+     */
+    public synchronized double[] getInvLengths(String field) {
+        if (this.tableMu != this.mu)
+            clearInvLengths();
+
+        double[] inv = this.invLengths.get(field);
+        if (inv != null)
+            return inv;
+
+        int fieldId = QryEval.dls.getFieldId(field);
+
+        inv = new double[QryEval.READER.maxDoc()];
+        double[] max = { 0.0, 0.0 };
+        for (int docid = 0; docid < inv.length; docid++) {
+            int doclen = QryEval.dls.getDocLength(fieldId, docid);
+            inv[docid] = 1.0 / (doclen + mu);
+            max[0] = Math.max(max[0], inv[docid]);
+            if (doclen > 0)
+                max[1] = Math.max(max[1], inv[docid]);
+        }
+
+        this.invLengths.put(field, inv);
+        this.maxInvLengths.put(field, max);
+        return inv;
+    }
+
+    /**
+     * Get the largest 1 / (doclen + mu) of a field. It bounds the scores
+     * used by top-k pruning.
+     * 
+     * @param field
+     *            The field whose document lengths are used.
+     * @param withField
+     *            If true, only documents that have the field, i.e., that
+     *            can contain a term of the field, are considered.
+     * @return The largest value.
+     */
+    public synchronized double getMaxInvLength(String field, boolean withField) {
+        getInvLengths(field);
+        return this.maxInvLengths.get(field)[withField ? 1 : 0];
+    }
+
+    /**
+     * Drop the tables, e.g. because mu changed.
+     */
+    private synchronized void clearInvLengths() {
+        this.invLengths.clear();
+        this.maxInvLengths.clear();
+        this.tableMu = this.mu;
+    }
 }
@@ -2,6 +2,12 @@
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
  *
+ *  Docids and scores are kept in parallel primitive arrays that grow
+ *  as needed, so adding a document does not allocate an object.  A
+ *  list can be reset and filled again without reallocating.  Sorting
+ *  sorts a permutation of the entry indexes and then reorders the
+ *  arrays.
+ *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
@@ -9,29 +15,26 @@ import java.util.*;
 
 public class ScoreList {
 
-    // A little utilty class to create a <docid, score> object.
-
-    protected class ScoreListEntry {
-        private int docid;
-        private double score;
-        public String extId;
+    // Initial capacity of the growable arrays.
 
-        private ScoreListEntry(int docid, double score) {
-            this.docid = docid;
-            this.score = score;
-            this.extId = null;
-        }
+    private static final int INITIAL_CAPACITY = 16;
 
-        public int getDocId() {
-            return docid;
-        }
+    /**
+     * Compares two entries of a score list by their indexes.
+     */
+    public interface IndexComparator {
+        public int compare(int n1, int n2);
     }
 
-    List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+    // Only the first size entries of docids and scores are valid.
+
+    private int[] docids = new int[INITIAL_CAPACITY];
+    private double[] scores = new double[INITIAL_CAPACITY];
+    private int size = 0;
 
     /**
      * Append a document score to a score list.
-     * 
+     *
      * @param docid
      *            An internal document id.
      * @param score
@@ -39,37 +42,166 @@ public class ScoreList {
      * @return void
      */
     public void add(int docid, double score) {
-        scores.add(new ScoreListEntry(docid, score));
+        if (this.size == this.docids.length) {
+            int capacity = this.docids.length << 1;
+            this.docids = Arrays.copyOf(this.docids, capacity);
+            this.scores = Arrays.copyOf(this.scores, capacity);
+        }
+        this.docids[this.size] = docid;
+        this.scores[this.size] = score;
+        this.size++;
+    }
+
+    /**
+     * Append all the entries of another score list.
+     *
+     * @param other
+     *            The score list to copy from.
+     */
+    public void addAll(ScoreList other) {
+        for (int n = 0; n < other.size; n++)
+            add(other.docids[n], other.scores[n]);
+    }
+
+    /**
+     * @return The number of documents in the list.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Empty the list but keep its arrays, so that it can be filled again
+     * without allocating.
+     */
+    public void reset() {
+        this.size = 0;
+    }
+
+    /**
+     * Replace every score by its exponential, e.g. to turn log probabilities
+     * into probabilities.
+     */
+    public void exp() {
+        for (int n = 0; n < this.size; n++)
+            this.scores[n] = Math.exp(this.scores[n]);
+    }
+
+    /**
+     * Drop every entry after the first n.
+     *
+     * @param n
+     *            The number of entries to keep.
+     */
+    public void truncate(int n) {
+        if (n < this.size)
+            this.size = n;
     }
 
     /**
      * Get the n'th document id.
-     * 
+     *
      * @param n
      *            The index of the requested document.
      * @return The internal document id.
      */
     public int getDocid(int n) {
-        return this.scores.get(n).docid;
+        return this.docids[n];
+    }
+
+    /**
+     * Find the first document at or after the from'th whose id is >=
+     * docid, by galloping search.
+     *
+     * @param from
+     *            The index to start from.
+     * @param docid
+     *            The internal document id to look for.
+     * @return Its index, or size() if there is none.
+     */
+    public int advance(int from, int docid) {
+        return Intersection.gallop(this.docids, from, this.size, docid);
     }
 
     /**
      * Get the score of the n'th document.
-     * 
+     *
      * @param n
      *            The index of the requested document score.
      * @return The document's score.
      */
     public double getDocidScore(int n) {
-        return this.scores.get(n).score;
+        return this.scores[n];
     }
 
-    public static int ScoreCompare(ScoreListEntry e1, ScoreListEntry e2) {
-        if (e2.score < e1.score)
+    /**
+     * Compare the n1'th and n2'th entries by score, larger score first.
+     */
+    public int ScoreCompare(int n1, int n2) {
+        if (this.scores[n2] < this.scores[n1])
             return -1;
-        else if (e2.score > e1.score)
+        else if (this.scores[n2] > this.scores[n1])
             return 1;
         else
             return 0;
     }
+
+    /**
+     * Sort the list. The sort is stable.
+     *
+     * @param comp
+     *            Compares two entries of this list by their indexes.
+     */
+    public void sort(IndexComparator comp) {
+        int[] order = new int[this.size];
+        for (int n = 0; n < order.length; n++)
+            order[n] = n;
+
+        mergeSort(order, new int[order.length], 0, order.length, comp);
+        reorder(order);
+    }
+
+    /**
+     * Reorder the list. After the call, the n'th entry is the entry that was
+     * at index order[n] before the call.
+     *
+     * @param order
+     *            A permutation of 0..size-1.
+     */
+    public void reorder(int[] order) {
+        int[] newDocids = new int[Math.max(this.size, INITIAL_CAPACITY)];
+        double[] newScores = new double[newDocids.length];
+        for (int n = 0; n < this.size; n++) {
+            newDocids[n] = this.docids[order[n]];
+            newScores[n] = this.scores[order[n]];
+        }
+        this.docids = newDocids;
+        this.scores = newScores;
+    }
+
+    /**
+     * Sort order[from..to) with a stable merge sort, using tmp as scratch
+     * space.
+     */
+    private static void mergeSort(int[] order, int[] tmp, int from, int to,
+            IndexComparator comp) {
+        if (to - from < 2)
+            return;
+
+        int mid = (from + to) >>> 1;
+        mergeSort(order, tmp, from, mid, comp);
+        mergeSort(order, tmp, mid, to, comp);
+
+        if (comp.compare(order[mid - 1], order[mid]) <= 0)
+            return; // already in order
+
+        System.arraycopy(order, from, tmp, from, to - from);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && comp.compare(tmp[i], tmp[j]) <= 0))
+                order[k] = tmp[i++];
+            else
+                order[k] = tmp[j++];
+        }
+    }
 }
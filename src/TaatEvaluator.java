@@ -0,0 +1,385 @@
+/**
+ *  TaatEvaluator evaluates flat queries term-at-a-time: each argument's
+ *  postings are read in one pass, into accumulators, before the next
+ *  argument is opened.  It handles a BM25 #SUM, a Boolean #OR and an
+ *  Indri #AND or #WAND whose arguments are all terms.
+ *
+ *  An accumulator is found through a dense int[] indexed by docid, and
+ *  the touched documents are kept in a list, so only they are reset
+ *  after a query.  For #SUM and Indri, each accumulator keeps one score
+ *  per argument, and the document score is combined at the end in
+ *  argument order with the same arithmetic as the document-at-a-time
+ *  operators (Indri default scores included), so the results are the
+ *  same.  For #OR the accumulator is the best score so far.
+ *
+ *  Arguments are read shortest list first.  If the number of
+ *  accumulators is limited, the limit is applied with the continue
+ *  strategy (later arguments only update existing accumulators) or the
+ *  quit strategy (evaluation stops); results are then approximate.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class TaatEvaluator {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // The cost model prefers TAAT for queries with at most this many
+    // arguments whose longest list is at least SKEW times the shortest.
+    static final int MAX_TERMS = 4;
+    static final int SKEW = 8;
+
+    // One evaluator per thread, so the dense arrays are reused.
+    private static final ThreadLocal<TaatEvaluator> evaluators = new ThreadLocal<TaatEvaluator>();
+
+    // accumulator limit (0 for none) and whether to quit when it is hit
+    private int limit;
+    private boolean quit;
+
+    // whether to leave queries that the cost model does not prefer
+    private boolean auto;
+
+    // docid -> accumulator, or -1
+    private int[] slotOf;
+
+    // accumulator -> docid, and the number of accumulators
+    private int[] docids = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // #OR: accumulator -> score; #SUM and Indri: argument -> accumulator
+    // -> score, NaN if the document does not contain the argument
+    private double[] best = new double[INITIAL_CAPACITY];
+    private double[][] scores = new double[0][];
+
+    // set when the quit strategy stops evaluation
+    private boolean stopped;
+
+    private TaatEvaluator(int maxDoc) {
+        this.slotOf = new int[maxDoc];
+        Arrays.fill(this.slotOf, -1);
+    }
+
+    /**
+     * Get the evaluator of the current thread.
+     *
+     * @param limit
+     *            The maximum number of accumulators, or 0 for no limit.
+     * @param quit
+     *            Whether to stop evaluation when the limit is hit, instead of
+     *            only updating existing accumulators.
+     * @param auto
+     *            Whether to evaluate only the queries that the cost model
+     *            prefers; the others return null.
+     */
+    static TaatEvaluator get(int limit, boolean quit, boolean auto) {
+        TaatEvaluator taat = evaluators.get();
+        if (taat == null || taat.slotOf.length != QryEval.READER.maxDoc()) {
+            taat = new TaatEvaluator(QryEval.READER.maxDoc());
+            evaluators.set(taat);
+        }
+        taat.limit = limit;
+        taat.quit = quit;
+        taat.auto = auto;
+        return taat;
+    }
+
+    /**
+     * @return true if every argument is a term.
+     */
+    static boolean isFlat(List<Qryop> args) {
+        return IndriTopK.isFlat(args);
+    }
+
+    /**
+     * The cost model: term-at-a-time wins for short queries whose lists
+     * have very different lengths, because the short lists are read
+     * without stepping through the long ones document by document. It only
+     * looks at the terms' statistics, so no postings are opened for queries
+     * that it rejects.
+     *
+     * @param args
+     *            The arguments of a flat operator.
+     * @return true if the query should be evaluated term-at-a-time.
+     * @throws IOException
+     */
+    static boolean prefer(List<Qryop> args) throws IOException {
+        if (args.size() < 2 || args.size() > MAX_TERMS)
+            return false;
+
+        long min = Long.MAX_VALUE, max = 0;
+        for (Qryop arg : args) {
+            if (arg instanceof QryopSlScore)
+                arg = arg.args.get(0);
+            int df = ((QryopIlTerm) arg).liveTermStats().df;
+            min = Math.min(min, df);
+            max = Math.max(max, df);
+        }
+        return max >= SKEW * Math.max(min, 1);
+    }
+
+    /**
+     * Order the arguments by list length, shortest first.
+     */
+    private static int[] byLength(final PostingCursor[] cursors) {
+        Integer[] order = new Integer[cursors.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return cursors[a].df - cursors[b].df;
+            }
+        });
+
+        int[] result = new int[order.length];
+        for (int i = 0; i < result.length; i++)
+            result[i] = order[i];
+        return result;
+    }
+
+    /**
+     * Find or create the accumulator of a document.
+     *
+     * @return The accumulator, or -1 if the limit does not allow a new one.
+     */
+    private int slot(int docid, int numArgs) {
+        int slot = this.slotOf[docid];
+        if (slot >= 0)
+            return slot;
+
+        if (this.limit > 0 && this.size >= this.limit) {
+            if (this.quit)
+                this.stopped = true;
+            return -1;
+        }
+
+        if (this.size == this.docids.length) {
+            int capacity = this.size << 1;
+            this.docids = Arrays.copyOf(this.docids, capacity);
+            this.best = Arrays.copyOf(this.best, capacity);
+            for (int i = 0; i < this.scores.length; i++)
+                this.scores[i] = Arrays.copyOf(this.scores[i], capacity);
+        }
+
+        slot = this.size++;
+        this.slotOf[docid] = slot;
+        this.docids[slot] = docid;
+        this.best[slot] = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numArgs; i++)
+            this.scores[i][slot] = Double.NaN;
+        return slot;
+    }
+
+    /**
+     * Prepare the accumulators for a query with numArgs arguments.
+     */
+    private void start(int numArgs) {
+        this.size = 0;
+        this.stopped = false;
+        if (this.scores.length < numArgs) {
+            this.scores = new double[numArgs][];
+            for (int i = 0; i < numArgs; i++)
+                this.scores[i] = new double[this.docids.length];
+        }
+    }
+
+    /**
+     * @return The accumulated documents in docid order.
+     */
+    private int[] finish() {
+        int[] sorted = Arrays.copyOf(this.docids, this.size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Reset the dense index for the next query.
+     */
+    private void clear() {
+        for (int n = 0; n < this.size; n++)
+            this.slotOf[this.docids[n]] = -1;
+        this.size = 0;
+    }
+
+    /**
+     * Evaluate a flat BM25 #SUM.
+     *
+     * @param op
+     *            The operator. Its term arguments are wrapped in #SCORE
+     *            operators in place.
+     * @param r
+     *            A BM25 retrieval model that controls how the operator
+     *            behaves.
+     * @return The result, in docid order, or null if the cost model prefers
+     *         document-at-a-time evaluation.
+     * @throws IOException
+     */
+    QryResult evaluateSum(QryopSlSum op, RetrievalModelBM25 r)
+            throws IOException {
+        if (this.auto && !prefer(op.args))
+            return null;
+
+        int n = op.args.size();
+        QryopSlScore[] scorers = new QryopSlScore[n];
+        PostingCursor[] cursors = new PostingCursor[n];
+        for (int i = 0; i < n; i++) {
+            scorers[i] = wrap(op.args, i);
+            cursors[i] = scorers[i].openBM25(r);
+        }
+
+        start(n);
+        try {
+            for (int i : byLength(cursors)) {
+                PostingCursor cursor = cursors[i];
+                while (!this.stopped
+                        && cursor.nextDoc() != PostingCursor.NO_MORE_DOCS) {
+                    int docid = cursor.docID();
+                    int slot = slot(docid, n);
+                    if (slot >= 0)
+                        this.scores[i][slot] = scorers[i].scoreBM25(docid,
+                                cursor.freq());
+                }
+            }
+
+            double user_w = QryopSlSum.userWeight(r);
+
+            QryResult result = new QryResult();
+            for (int docid : finish()) {
+                int slot = this.slotOf[docid];
+                double docScore = 0.0;
+                for (int i = 0; i < n; i++)
+                    if (!Double.isNaN(this.scores[i][slot]))
+                        docScore += user_w * this.scores[i][slot];
+                result.docScores.add(docid, docScore);
+            }
+            return result;
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Evaluate a flat Boolean #OR. Unranked Boolean gives every document a
+     * score of 1.0; ranked Boolean gives it its largest tf.
+     *
+     * @param op
+     *            The operator.
+     * @param r
+     *            A Boolean retrieval model that controls how the operator
+     *            behaves.
+     * @return The result, in docid order, or null if the cost model prefers
+     *         document-at-a-time evaluation.
+     * @throws IOException
+     */
+    QryResult evaluateOr(QryopSlOr op, RetrievalModel r) throws IOException {
+        if (this.auto && !prefer(op.args))
+            return null;
+
+        boolean ranked = r instanceof RetrievalModelRankedBoolean;
+        int n = op.args.size();
+        PostingCursor[] cursors = new PostingCursor[n];
+        for (int i = 0; i < n; i++) {
+            Qryop arg = op.args.get(i);
+            if (arg instanceof QryopSlScore)
+                arg = arg.args.get(0);
+            cursors[i] = ((QryopIl) arg).cursor(r, false);
+        }
+
+        start(0);
+        try {
+            for (int i : byLength(cursors)) {
+                PostingCursor cursor = cursors[i];
+                while (!this.stopped
+                        && cursor.nextDoc() != PostingCursor.NO_MORE_DOCS) {
+                    int slot = slot(cursor.docID(), 0);
+                    if (slot >= 0)
+                        this.best[slot] = Math.max(this.best[slot],
+                                ranked ? (double) cursor.freq() : 1.0);
+                }
+            }
+
+            QryResult result = new QryResult();
+            for (int docid : finish())
+                result.docScores.add(docid, this.best[this.slotOf[docid]]);
+            return result;
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Evaluate a flat Indri #AND or #WAND.
+     *
+     * @param args
+     *            The arguments of the operator. Terms are wrapped in #SCORE
+     *            operators in place.
+     * @param exponents
+     *            The exponent of each argument's score.
+     * @param r
+     *            A Indri retrieval model that controls how the operator
+     *            behaves.
+     * @return The result, in docid order, or null if the cost model prefers
+     *         document-at-a-time evaluation.
+     * @throws IOException
+     */
+    QryResult evaluateIndri(List<Qryop> args, double[] exponents,
+            RetrievalModelIndri r) throws IOException {
+        if (this.auto && !prefer(args))
+            return null;
+
+        int n = args.size();
+        QryopSlScore[] scorers = new QryopSlScore[n];
+        PostingCursor[] cursors = new PostingCursor[n];
+        for (int i = 0; i < n; i++) {
+            scorers[i] = wrap(args, i);
+            cursors[i] = scorers[i].openIndri(r);
+        }
+
+        start(n);
+        try {
+            for (int i : byLength(cursors)) {
+                PostingCursor cursor = cursors[i];
+                while (!this.stopped
+                        && cursor.nextDoc() != PostingCursor.NO_MORE_DOCS) {
+                    int docid = cursor.docID();
+                    int slot = slot(docid, n);
+                    if (slot >= 0)
+                        this.scores[i][slot] = scorers[i].scoreIndri(docid,
+                                cursor.freq());
+                }
+            }
+
+            QryResult result = new QryResult();
+            for (int docid : finish()) {
+                int slot = this.slotOf[docid];
+                double docScore = 0.0;
+                for (int i = 0; i < n; i++) {
+                    double s = this.scores[i][slot];
+                    if (Double.isNaN(s)) {
+                        s = scorers[i].getDefaultScore(r, docid);
+                        if (s == Double.NEGATIVE_INFINITY)
+                            continue; // discard this term
+                    } else
+                        s = Math.log(s);
+                    docScore += exponents[i] * s;
+                }
+                result.docScores.add(docid, Math.exp(docScore));
+            }
+            return result;
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Wrap argument i in a #SCORE operator, as allocDaaTPtrs does.
+     */
+    private static QryopSlScore wrap(List<Qryop> args, int i) {
+        if (!(args.get(i) instanceof QryopSlScore))
+            args.set(i, new QryopSlScore(args.get(i)));
+        return (QryopSlScore) args.get(i);
+    }
+}
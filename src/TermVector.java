@@ -166,7 +166,7 @@ public class TermVector {
      * @throws IOException.
      */
     public long totalStemFreq(int i) throws IOException {
-        return QryEval.READER.totalTermFreq(terms[i]);
+        return QryEval.stats.totalTermFreq(terms[i]);
     }
 
     /**
@@ -178,7 +178,7 @@ public class TermVector {
      * @throws IOException.
      */
     public int stemDf(int i) throws IOException {
-        return QryEval.READER.docFreq(terms[i]);
+        return QryEval.stats.docFreq(terms[i]);
     }
 
 }
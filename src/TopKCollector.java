@@ -0,0 +1,160 @@
+/**
+ *  TopKCollector keeps the k best documents of a ranked result.  It
+ *  is a binary min-heap over primitive arrays whose root is the worst
+ *  document kept so far, so each collected document costs O(log k)
+ *  instead of sorting the whole result.  Documents are ranked by
+ *  score, and ties are broken by external id in lexicographic order,
+ *  the same order as QryEval.sortResult uses, by comparing external id
+ *  ordinals.
+ *
+ *  @author Jiachen Li (AndrewID: jiachenl)
+ */
+
+import java.io.IOException;
+
+public class TopKCollector {
+
+    private int k;
+    private int size = 0;
+
+    // The heap, in the first size entries. Entry k is scratch space for a
+    // candidate that is compared with the root.
+    private int[] docids;
+    private double[] scores;
+
+    /**
+     * @param k
+     *            The number of documents to keep.
+     */
+    public TopKCollector(int k) {
+        this.k = k;
+        this.docids = new int[k + 1];
+        this.scores = new double[k + 1];
+    }
+
+    /**
+     * Offer a document to the collector.
+     *
+     * @param docid
+     *            An internal document id.
+     * @param score
+     *            The document's score.
+     * @throws IOException
+     */
+    public void collect(int docid, double score) throws IOException {
+        if (this.size < this.k) {
+            set(this.size, docid, score);
+            siftUp(this.size++);
+            return;
+        }
+
+        // The heap is full; the candidate replaces the root only if the
+        // root ranks below it.
+
+        set(this.k, docid, score);
+        if (this.k > 0 && worse(0, this.k)) {
+            move(this.k, 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Offer every document of a score list to the collector.
+     *
+     * @param list
+     *            The score list.
+     * @throws IOException
+     */
+    public void collectAll(ScoreList list) throws IOException {
+        for (int n = 0; n < list.size(); n++)
+            collect(list.getDocid(n), list.getDocidScore(n));
+    }
+
+    /**
+     * @return The score that a document must reach to be kept: the score of
+     *         the worst document kept once k documents are kept, and
+     *         negative infinity before that.
+     */
+    public double threshold() {
+        if (this.size < this.k)
+            return Double.NEGATIVE_INFINITY;
+        return (this.k > 0) ? this.scores[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Empty the collector. The heap is consumed.
+     *
+     * @return The collected documents, best first.
+     * @throws IOException
+     */
+    public ScoreList topDocs() throws IOException {
+        int n = this.size;
+        int[] sortedDocids = new int[n];
+        double[] sortedScores = new double[n];
+
+        // Repeatedly remove the worst document and put it at the end.
+
+        while (this.size > 0) {
+            int last = --this.size;
+            sortedDocids[last] = this.docids[0];
+            sortedScores[last] = this.scores[0];
+            move(last, 0);
+            siftDown(0);
+        }
+
+        ScoreList list = new ScoreList();
+        for (int i = 0; i < n; i++)
+            list.add(sortedDocids[i], sortedScores[i]);
+        return list;
+    }
+
+    /**
+     * @return true if entry i ranks below entry j.
+     */
+    private boolean worse(int i, int j) throws IOException {
+        if (this.scores[i] != this.scores[j])
+            return this.scores[i] < this.scores[j];
+
+        return QryEval.compareExternalIds(this.docids[i], this.docids[j]) > 0;
+    }
+
+    private void set(int i, int docid, double score) {
+        this.docids[i] = docid;
+        this.scores[i] = score;
+    }
+
+    private void move(int from, int to) {
+        set(to, this.docids[from], this.scores[from]);
+    }
+
+    private void swap(int i, int j) {
+        int docid = this.docids[i];
+        double score = this.scores[i];
+        move(j, i);
+        set(j, docid, score);
+    }
+
+    private void siftUp(int i) throws IOException {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) throws IOException {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= this.size)
+                break;
+            if (child + 1 < this.size && worse(child + 1, child))
+                child++;
+            if (!worse(child, i))
+                break;
+            swap(i, child);
+            i = child;
+        }
+    }
+}